@@ -0,0 +1,218 @@
+package com.chariotsolutions.nfc.plugin;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+
+// Bounded queue between tag discovery and the WebView.
+// At most window events are in flight, JavaScript acknowledges each event by its id after dispatching it.
+// Acknowledgements for events that already expired are ignored, they can't free a slot twice.
+// When the WebView falls behind, events wait here and the policy decides which ones are dropped.
+class EventQueue {
+
+    static final String DROP_OLDEST = "drop-oldest";
+    static final String DROP_NEWEST = "drop-newest";
+    static final String COALESCE = "coalesce-by-uid";
+
+    interface Sender {
+        void send(String command, long id);
+        void pressure(boolean underPressure, JSONObject stats);
+    }
+
+    private static class Event {
+        final String type;
+        final byte[] uid;
+        String command;
+
+        Event(String type, byte[] uid, String command) {
+            this.type = type;
+            this.uid = uid;
+            this.command = command;
+        }
+    }
+
+    private final Sender sender;
+    private final LinkedList<Event> queue = new LinkedList<Event>();
+
+    // checks for missing acknowledgements, so the queue drains without waiting for the next tag
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable ackTimeout = new Runnable() {
+        public void run() {
+            synchronized (EventQueue.this) {
+                ackTimeoutScheduled = false;
+                expireInFlight();
+                if (!inFlight.isEmpty()) {
+                    scheduleAckTimeout();
+                }
+            }
+        }
+    };
+    private boolean ackTimeoutScheduled = false;
+
+    private int capacity = 16;
+    private int window = 1;
+    private long ackTimeoutMillis = 2000;
+    private String policy = DROP_OLDEST;
+
+    // ids of the events sent and not yet acknowledged
+    private final Set<Long> inFlight = new HashSet<Long>();
+    private long nextId = 1;
+    private long lastSent = 0;
+    private boolean underPressure = false;
+
+    private long delivered = 0;
+    private long droppedOldest = 0;
+    private long droppedNewest = 0;
+    private long coalesced = 0;
+
+    EventQueue(Sender sender) {
+        this.sender = sender;
+    }
+
+    synchronized void configure(JSONObject options) {
+        String newPolicy = options.optString("policy", policy);
+        if (!DROP_OLDEST.equals(newPolicy) && !DROP_NEWEST.equals(newPolicy) && !COALESCE.equals(newPolicy)) {
+            throw new IllegalArgumentException("Invalid queue policy " + newPolicy);
+        }
+        int newCapacity = options.optInt("capacity", capacity);
+        int newWindow = options.optInt("window", window);
+        if (newCapacity < 1 || newWindow < 1) {
+            throw new IllegalArgumentException("capacity and window must be at least 1");
+        }
+
+        policy = newPolicy;
+        capacity = newCapacity;
+        window = newWindow;
+        ackTimeoutMillis = options.optLong("ackTimeout", ackTimeoutMillis);
+
+        while (queue.size() > capacity) {
+            queue.removeFirst();
+            droppedOldest++;
+        }
+    }
+
+    synchronized void offer(String type, byte[] uid, String command) {
+        expireInFlight();
+
+        if (inFlight.size() < window && queue.isEmpty()) {
+            send(new Event(type, uid, command));
+            return;
+        }
+
+        if (COALESCE.equals(policy) && uid != null && coalesce(type, uid, command)) {
+            return;
+        }
+
+        if (queue.size() >= capacity) {
+            if (DROP_NEWEST.equals(policy)) {
+                droppedNewest++;
+                startPressure();
+                return;
+            }
+            queue.removeFirst();
+            droppedOldest++;
+            startPressure();
+        }
+        queue.addLast(new Event(type, uid, command));
+        if (queue.size() >= capacity) {
+            startPressure();
+        }
+    }
+
+    // JavaScript finished dispatching an event, a late ack for an expired event is ignored
+    synchronized void acknowledge(long id) {
+        if (inFlight.remove(id)) {
+            drain();
+        }
+    }
+
+    // The WebView was reloaded, anything in flight is never going to be acknowledged
+    synchronized void reset() {
+        inFlight.clear();
+        drain();
+    }
+
+    synchronized JSONObject stats() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("policy", policy);
+            json.put("capacity", capacity);
+            json.put("window", window);
+            json.put("queued", queue.size());
+            json.put("inFlight", inFlight.size());
+            json.put("delivered", delivered);
+            json.put("droppedOldest", droppedOldest);
+            json.put("droppedNewest", droppedNewest);
+            json.put("coalesced", coalesced);
+            json.put("dropped", droppedOldest + droppedNewest);
+            json.put("underPressure", underPressure);
+        } catch (JSONException e) {
+            // shouldn't happen
+        }
+        return json;
+    }
+
+    private boolean coalesce(String type, byte[] uid, String command) {
+        for (Iterator<Event> i = queue.iterator(); i.hasNext();) {
+            Event queued = i.next();
+            if (queued.type.equals(type) && Arrays.equals(queued.uid, uid)) {
+                queued.command = command;
+                coalesced++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        while (inFlight.size() < window && !queue.isEmpty()) {
+            send(queue.removeFirst());
+        }
+        if (queue.isEmpty() && underPressure) {
+            underPressure = false;
+            sender.pressure(false, stats());
+        }
+    }
+
+    private void send(Event event) {
+        long id = nextId++;
+        inFlight.add(id);
+        delivered++;
+        lastSent = SystemClock.uptimeMillis();
+        sender.send(event.command, id);
+        scheduleAckTimeout();
+    }
+
+    // one check at a time, it reschedules itself until the last event sent is acknowledged or expired
+    private void scheduleAckTimeout() {
+        if (!ackTimeoutScheduled) {
+            ackTimeoutScheduled = true;
+            long due = lastSent + ackTimeoutMillis + 1 - SystemClock.uptimeMillis();
+            handler.postDelayed(ackTimeout, Math.max(due, 1));
+        }
+    }
+
+    private void startPressure() {
+        if (!underPressure) {
+            underPressure = true;
+            sender.pressure(true, stats());
+        }
+    }
+
+    // Missing acknowledgements, e.g. events sent before the page loaded, must not block the queue forever.
+    // Runs when an event is offered and from the scheduled ack timeout.
+    private void expireInFlight() {
+        if (!inFlight.isEmpty() && SystemClock.uptimeMillis() - lastSent > ackTimeoutMillis) {
+            inFlight.clear();
+            drain();
+        }
+    }
+}
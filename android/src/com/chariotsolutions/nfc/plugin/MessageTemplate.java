@@ -0,0 +1,239 @@
+package com.chariotsolutions.nfc.plugin;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+// A message that is serialized once when it's registered and written many times with a few bytes changed.
+// Each field is patched into the payload of a record at a fixed offset:
+//
+//     counter    increments with each write, starting at start
+//     uid        the id of the tag being written
+//     timestamp  seconds since 1970
+//     hmac       HMAC-SHA256 of the stamped message with the hmac bytes zeroed, truncated to length
+//
+// Fields are encoded as big-endian "binary" (the default), zero padded decimal "ascii" or uppercase "hex".
+class MessageTemplate {
+
+    private static final int COUNTER = 0;
+    private static final int UID = 1;
+    private static final int TIMESTAMP = 2;
+    private static final int HMAC = 3;
+    private static final String[] TYPES = { "counter", "uid", "timestamp", "hmac" };
+
+    private static final int BINARY = 0;
+    private static final int ASCII = 1;
+    private static final int HEX = 2;
+    private static final String[] FORMATS = { "binary", "ascii", "hex" };
+
+    private static final byte[] HEX_DIGITS = "0123456789ABCDEF".getBytes();
+
+    private static class Field {
+        final int type;
+        final int format;
+        final int offset;  // into the serialized message
+        final int length;
+
+        Field(int type, int format, int offset, int length) {
+            this.type = type;
+            this.format = format;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final byte[] template;
+    private final Field[] fields;
+    private final Mac mac;
+    private final Field hmacField;
+
+    // stamped into and parsed from, only while holding the lock
+    private final byte[] buffer;
+    private long counter;
+
+    MessageTemplate(NdefMessage message, JSONArray fields) throws JSONException {
+        this.template = message.toByteArray();
+        this.buffer = template.clone();
+        this.fields = new Field[fields.length()];
+
+        int[][] payloads = payloadBounds(template, message.getRecords().length);
+        Field hmacField = null;
+        Mac mac = null;
+        for (int i = 0; i < fields.length(); i++) {
+            JSONObject json = fields.getJSONObject(i);
+            int type = indexOf(TYPES, json.getString("type"), "field type");
+            int format = indexOf(FORMATS, json.optString("format", "binary"), "field format");
+            int record = json.getInt("record");
+            if (record < 0 || record >= payloads[0].length) {
+                throw new IllegalArgumentException("Field " + i + " refers to record " + record + " but the message has " + payloads[0].length + " records");
+            }
+            int offset = json.optInt("offset", 0);
+            int length = json.getInt("length");
+            int start = payloads[0][record] + offset;
+            if (offset < 0 || length < 1 || start + length > payloads[1][record]) {
+                throw new IllegalArgumentException("Field " + i + " doesn't fit in the payload of record " + record);
+            }
+            if (format == BINARY && type != HMAC && type != UID && length > 8) {
+                throw new IllegalArgumentException("Field " + i + " is longer than 8 bytes");
+            }
+            this.fields[i] = new Field(type, format, start, length);
+
+            if (type == COUNTER) {
+                counter = json.optLong("start", 0);
+                if (counter < 0) {
+                    throw new IllegalArgumentException("Counter start can't be negative");
+                }
+            } else if (type == HMAC) {
+                if (hmacField != null) {
+                    throw new IllegalArgumentException("Only one hmac field is allowed");
+                }
+                if (format == ASCII || length > (format == HEX ? 64 : 32) || (format == HEX && length % 2 != 0)) {
+                    throw new IllegalArgumentException("hmac field must be binary or an even number of hex digits, at most 32 bytes");
+                }
+                hmacField = this.fields[i];
+                mac = createMac(Util.jsonToByteArray(json.getJSONArray("key")));
+            }
+        }
+        this.hmacField = hmacField;
+        this.mac = mac;
+    }
+
+    int size() {
+        return template.length;
+    }
+
+    // Counters are reserved before writing so retries write the same value and concurrent writes don't share one
+    synchronized long nextCounter() {
+        return counter++;
+    }
+
+    // Copies the template into the buffer and patches the fields
+    synchronized NdefMessage stamp(long counter, byte[] uid) throws TagWriteException, FormatException {
+        System.arraycopy(template, 0, buffer, 0, template.length);
+        long timestamp = System.currentTimeMillis() / 1000;
+
+        for (Field field : fields) {
+            switch (field.type) {
+                case COUNTER:
+                    patchNumber(field, counter);
+                    break;
+                case TIMESTAMP:
+                    patchNumber(field, timestamp);
+                    break;
+                case UID:
+                    patchBytes(field, uid, uid.length);
+                    break;
+                default:
+                    // hmac is patched last, it covers the other fields
+                    break;
+            }
+        }
+
+        if (hmacField != null) {
+            Arrays.fill(buffer, hmacField.offset, hmacField.offset + hmacField.length, (byte) 0);
+            mac.update(buffer, 0, buffer.length);
+            byte[] digest = mac.doFinal();
+            int length = hmacField.format == HEX ? hmacField.length / 2 : hmacField.length;
+            patchBytes(hmacField, digest, Math.min(length, digest.length));
+        }
+
+        // NdefMessage parses its own copy so the buffer can be reused for the next stamp
+        return new NdefMessage(buffer);
+    }
+
+    // Values that don't fit are rejected in every format, a wrapped counter would write a duplicate serial
+    private void patchNumber(Field field, long value) throws TagWriteException {
+        if (value < 0) {
+            throw new TagWriteException(TYPES[field.type] + " can't be negative");
+        }
+        int end = field.offset + field.length;
+        if (field.format == BINARY) {
+            if (field.length < 8 && value >>> (field.length * 8) != 0) {
+                throw new TagWriteException("Value " + value + " doesn't fit in " + field.length + " bytes");
+            }
+            long remaining = value;
+            for (int i = end - 1; i >= field.offset; i--) {
+                buffer[i] = (byte) remaining;
+                remaining >>>= 8;
+            }
+            return;
+        }
+
+        int radix = field.format == HEX ? 16 : 10;
+        long remaining = value;
+        for (int i = end - 1; i >= field.offset; i--) {
+            buffer[i] = HEX_DIGITS[(int) (remaining % radix)];
+            remaining /= radix;
+        }
+        if (remaining != 0) {
+            throw new TagWriteException("Value " + value + " doesn't fit in " + field.length + " characters");
+        }
+    }
+
+    private void patchBytes(Field field, byte[] bytes, int count) throws TagWriteException {
+        int needed = field.format == HEX ? count * 2 : count;
+        if (needed != field.length) {
+            throw new TagWriteException(TYPES[field.type] + " needs " + needed + " bytes, template field is " + field.length + " bytes");
+        }
+        if (field.format == HEX) {
+            for (int i = 0; i < count; i++) {
+                buffer[field.offset + i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+                buffer[field.offset + i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+            }
+        } else {
+            System.arraycopy(bytes, 0, buffer, field.offset, count);
+        }
+    }
+
+    // Start and end of each record's payload in the serialized message, { starts, ends }
+    private static int[][] payloadBounds(byte[] bytes, int recordCount) {
+        int[] starts = new int[recordCount];
+        int[] ends = new int[recordCount];
+        int pos = 0;
+        for (int i = 0; i < recordCount; i++) {
+            int header = bytes[pos];
+            int typeLength = bytes[pos + 1] & 0xFF;
+            pos += 2;
+            int payloadLength;
+            if ((header & 0x10) != 0) {  // short record
+                payloadLength = bytes[pos++] & 0xFF;
+            } else {
+                payloadLength = ((bytes[pos] & 0xFF) << 24) | ((bytes[pos + 1] & 0xFF) << 16) |
+                        ((bytes[pos + 2] & 0xFF) << 8) | (bytes[pos + 3] & 0xFF);
+                pos += 4;
+            }
+            int idLength = (header & 0x08) != 0 ? bytes[pos++] & 0xFF : 0;
+            pos += typeLength + idLength;
+            starts[i] = pos;
+            pos += payloadLength;
+            ends[i] = pos;
+        }
+        return new int[][] { starts, ends };
+    }
+
+    private static int indexOf(String[] names, String name, String what) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Invalid " + what + " " + name);
+    }
+
+    private static Mac createMac(byte[] key) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Can't create HMAC " + e.getMessage());
+        }
+    }
+}
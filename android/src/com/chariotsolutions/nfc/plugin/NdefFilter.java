@@ -0,0 +1,151 @@
+package com.chariotsolutions.nfc.plugin;
+
+import android.nfc.NdefMessage;
+import android.nfc.NdefRecord;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+// Content rules compiled from JSON once and evaluated against the raw NdefMessage.
+// A message matches the filter if it matches any rule. A rule matches if the record count is in range
+// and, when the rule has record conditions, at least one record satisfies all of them.
+class NdefFilter {
+
+    // URI identifier codes from the NFC Forum URI Record Type Definition
+    private static final String[] URI_PREFIXES = {
+        "", "http://www.", "https://www.", "http://", "https://", "tel:", "mailto:",
+        "ftp://anonymous:anonymous@", "ftp://ftp.", "ftps://", "sftp://", "smb://", "nfs://",
+        "ftp://", "dav://", "news:", "telnet://", "imap:", "rtsp://", "urn:", "pop:", "sip:", "sips:",
+        "tftp:", "btspp://", "btl2cap://", "btgoep://", "tcpobex://", "irdaobex://", "file://",
+        "urn:epc:id:", "urn:epc:tag:", "urn:epc:pat:", "urn:epc:raw:", "urn:epc:", "urn:nfc:"
+    };
+
+    private static final byte[][] URI_PREFIX_BYTES = new byte[URI_PREFIXES.length][];
+
+    static {
+        for (int i = 0; i < URI_PREFIXES.length; i++) {
+            URI_PREFIX_BYTES[i] = Util.utf8(URI_PREFIXES[i]);
+        }
+    }
+
+    private static final NdefRecord[] NO_RECORDS = new NdefRecord[0];
+
+    private final Rule[] rules;
+
+    private NdefFilter(Rule[] rules) {
+        this.rules = rules;
+    }
+
+    static NdefFilter compile(JSONArray json) throws JSONException {
+        Rule[] rules = new Rule[json.length()];
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = new Rule(json.getJSONObject(i));
+        }
+        return new NdefFilter(rules);
+    }
+
+    boolean matches(NdefMessage message) {
+        NdefRecord[] records = message == null ? NO_RECORDS : message.getRecords();
+        for (Rule rule : rules) {
+            if (rule.matches(records)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static class Rule {
+        private static final int ANY = -1;
+
+        private final int tnf;
+        private final byte[] type;
+        private final byte[] uriPrefix;
+        private final byte[] payload;
+        private final int payloadOffset;
+        private final int minRecords;
+        private final int maxRecords;
+        private final boolean hasRecordConditions;
+
+        Rule(JSONObject json) throws JSONException {
+            tnf = json.has("tnf") ? json.getInt("tnf") : ANY;
+            type = json.has("type") ? Util.jsonToByteArray(json.getJSONArray("type")) : null;
+            uriPrefix = json.has("uriPrefix") ? Util.utf8(json.getString("uriPrefix")) : null;
+            payload = json.has("payload") ? Util.jsonToByteArray(json.getJSONArray("payload")) : null;
+            payloadOffset = json.optInt("payloadOffset", 0);
+            minRecords = json.optInt("minRecords", 0);
+            maxRecords = json.optInt("maxRecords", Integer.MAX_VALUE);
+            hasRecordConditions = tnf != ANY || type != null || uriPrefix != null || payload != null;
+        }
+
+        boolean matches(NdefRecord[] records) {
+            if (records.length < minRecords || records.length > maxRecords) {
+                return false;
+            }
+            if (!hasRecordConditions) {
+                return true;
+            }
+            for (NdefRecord record : records) {
+                if (matches(record)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean matches(NdefRecord record) {
+            if (tnf != ANY && record.getTnf() != tnf) {
+                return false;
+            }
+            if (type != null && !Arrays.equals(record.getType(), type)) {
+                return false;
+            }
+            if (payload != null && !regionMatches(record.getPayload(), payloadOffset, payload)) {
+                return false;
+            }
+            return uriPrefix == null || uriStartsWith(record, uriPrefix);
+        }
+    }
+
+    // Compares against the expanded URI without building it
+    static boolean uriStartsWith(NdefRecord record, byte[] prefix) {
+        short tnf = record.getTnf();
+        byte[] payload = record.getPayload();
+
+        if (tnf == NdefRecord.TNF_WELL_KNOWN && Arrays.equals(record.getType(), NdefRecord.RTD_URI) && payload.length > 0) {
+            int code = payload[0] & 0xFF;
+            byte[] abbreviation = code < URI_PREFIX_BYTES.length ? URI_PREFIX_BYTES[code] : URI_PREFIX_BYTES[0];
+            int shared = Math.min(abbreviation.length, prefix.length);
+            for (int i = 0; i < shared; i++) {
+                if (abbreviation[i] != prefix[i]) {
+                    return false;
+                }
+            }
+            for (int i = shared; i < prefix.length; i++) {
+                int index = 1 + i - abbreviation.length;
+                if (index >= payload.length || payload[index] != prefix[i]) {
+                    return false;
+                }
+            }
+            return true;
+
+        } else if (tnf == NdefRecord.TNF_ABSOLUTE_URI) {
+            // the URI belongs in the type, but ndef.uriRecord in phonegap-nfc.js puts it in the payload
+            return regionMatches(record.getType(), 0, prefix) || regionMatches(payload, 0, prefix);
+        }
+        return false;
+    }
+
+    static boolean regionMatches(byte[] bytes, int offset, byte[] expected) {
+        if (offset < 0 || bytes.length - offset < expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (bytes[offset + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,21 @@
+package com.chariotsolutions.nfc.plugin;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+
+import java.io.IOException;
+
+// The part of an NDEF tag that NfcPlugin.writeNdef uses, Ndef on a device, a simulated tag in WriteBenchmark
+interface NdefTarget {
+
+    void connect() throws IOException;
+
+    boolean isWritable();
+
+    int getMaxSize();
+
+    void write(NdefMessage message) throws IOException, FormatException;
+
+    // failures are logged, the write already succeeded or failed
+    void close();
+}
@@ -0,0 +1,111 @@
+package com.chariotsolutions.nfc.plugin;
+
+import android.util.Log;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// Logging that costs nothing when it's off. Check on() before building the message:
+//
+//     if (NfcLog.on(NfcLog.EVENT, Log.VERBOSE)) {
+//         NfcLog.log(Log.VERBOSE, "event " + NfcLog.truncate(command));
+//     }
+//
+// Each category can be sampled so only every nth message is logged.
+// The level defaults to what Log.isLoggable allows, e.g. adb shell setprop log.tag.NfcPlugin VERBOSE
+final class NfcLog {
+
+    static final String TAG = "NfcPlugin";
+
+    static final int GENERAL = 0;
+    static final int EXECUTE = 1;
+    static final int INTENT = 2;
+    static final int EVENT = 3;
+
+    private static final String[] CATEGORIES = { "general", "execute", "intent", "event" };
+    private static final String[] LEVELS = { null, null, "verbose", "debug", "info", "warn", "error" };
+
+    private static volatile int level = defaultLevel();
+    private static volatile int maxPayload = 256;
+    private static final int[] sampleRates = { 1, 1, 1, 1 };
+    private static final int[] counters = new int[CATEGORIES.length];
+
+    private NfcLog() {
+    }
+
+    // messages without a category are GENERAL, they're sampled like the others
+    static boolean on(int level) {
+        return on(GENERAL, level);
+    }
+
+    // counters aren't synchronized, sampling only needs to be approximately every nth message
+    static boolean on(int category, int level) {
+        if (level < NfcLog.level) {
+            return false;
+        }
+        int rate = sampleRates[category];
+        return rate <= 1 || counters[category]++ % rate == 0;
+    }
+
+    static void log(int level, String message) {
+        Log.println(level, TAG, message);
+    }
+
+    static String truncate(String payload) {
+        if (payload == null || payload.length() <= maxPayload) {
+            return payload;
+        }
+        return payload.substring(0, maxPayload) + "... (" + payload.length() + " chars)";
+    }
+
+    // options: level ("verbose", "debug", "info", "warn", "error"), maxPayload and sample, e.g. { event: 10 }
+    static void configure(JSONObject options) throws JSONException {
+        if (options.has("level")) {
+            level = parseLevel(options.getString("level"));
+        }
+        if (options.has("maxPayload")) {
+            maxPayload = Math.max(0, options.getInt("maxPayload"));
+        }
+        JSONObject sample = options.optJSONObject("sample");
+        if (sample != null) {
+            for (int i = 0; i < CATEGORIES.length; i++) {
+                if (sample.has(CATEGORIES[i])) {
+                    sampleRates[i] = Math.max(1, sample.getInt(CATEGORIES[i]));
+                }
+            }
+        }
+    }
+
+    static JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("level", LEVELS[level]);
+            json.put("maxPayload", maxPayload);
+            JSONObject sample = new JSONObject();
+            for (int i = 0; i < CATEGORIES.length; i++) {
+                sample.put(CATEGORIES[i], sampleRates[i]);
+            }
+            json.put("sample", sample);
+        } catch (JSONException e) {
+            // shouldn't happen
+        }
+        return json;
+    }
+
+    private static int parseLevel(String name) {
+        for (int i = Log.VERBOSE; i <= Log.ERROR; i++) {
+            if (LEVELS[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Invalid log level " + name);
+    }
+
+    private static int defaultLevel() {
+        for (int i = Log.VERBOSE; i < Log.ERROR; i++) {
+            if (Log.isLoggable(TAG, i)) {
+                return i;
+            }
+        }
+        return Log.ERROR;
+    }
+}
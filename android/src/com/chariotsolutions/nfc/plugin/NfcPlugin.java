@@ -6,20 +6,36 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.IntentFilter.MalformedMimeTypeException;
 import android.nfc.*;
+import android.nfc.tech.MifareUltralight;
 import android.nfc.tech.Ndef;
 import android.nfc.tech.NdefFormatable;
+import android.nfc.tech.TagTechnology;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.util.Log;
+import org.apache.cordova.CordovaWebView;
 import org.apache.cordova.api.CallbackContext;
+import org.apache.cordova.api.CordovaInterface;
 import org.apache.cordova.api.CordovaPlugin;
+import org.apache.cordova.api.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NfcPlugin extends CordovaPlugin {
     private static final String REGISTER_MIME_TYPE = "registerMimeType";
@@ -27,28 +43,127 @@ public class NfcPlugin extends CordovaPlugin {
     private static final String REGISTER_NDEF_FORMATABLE = "registerNdefFormatable";
     private static final String REGISTER_DEFAULT_TAG = "registerTag";
     private static final String WRITE_TAG = "writeTag";
+    private static final String ERASE_TAG = "eraseTag";
+    private static final String MAKE_READ_ONLY = "makeReadOnly";
+    private static final String READ_TAG = "readTag";
+    private static final String SET_FAST_READ = "setFastRead";
+    private static final String BENCHMARK_WRITE = "benchmarkWrite";
+    private static final String REGISTER_TEMPLATE = "registerTemplate";
+    private static final String WRITE_TEMPLATE = "writeTemplate";
+    private static final String REMOVE_TEMPLATE = "removeTemplate";
+    private static final String SET_RETRY_POLICY = "setRetryPolicy";
+    private static final String SET_LOG_LEVEL = "setLogLevel";
     private static final String SHARE_TAG = "shareTag";
     private static final String UNSHARE_TAG = "unshareTag";
     private static final String INIT = "init";
+    private static final String SET_UID_FILTER = "setUidFilter";
+    private static final String LOAD_UID_FILTER = "loadUidFilter";
+    private static final String CLEAR_UID_FILTER = "clearUidFilter";
+    private static final String SET_NDEF_FILTER = "setNdefFilter";
+    private static final String CLEAR_NDEF_FILTER = "clearNdefFilter";
+    private static final String CONFIGURE_EVENT_QUEUE = "configureEventQueue";
+    private static final String GET_EVENT_QUEUE_STATS = "getEventQueueStats";
+    private static final String EVENT_DELIVERED = "eventDelivered";
+    private static final String ENABLE_JOURNAL = "enableJournal";
+    private static final String DISABLE_JOURNAL = "disableJournal";
+    private static final String REPLAY_JOURNAL = "replayJournal";
 
     private static final String NDEF = "ndef";
     private static final String NDEF_MIME = "ndef-mime";
     private static final String NDEF_FORMATABLE = "ndef-formatable";
     private static final String TAG_DEFAULT = "tag";
+    private static final String PRESSURE = "nfc-pressure";
 
 
     private static final String TAG = "NfcPlugin";
+
+    private static final String EVENT_TEMPLATE =
+        "var e = document.createEvent(''Events'');\n" +
+        "e.initEvent(''{0}'');\n" +
+        "e.tag = {1};\n" +
+        "document.dispatchEvent(e);";
+
+    // JavaScript acknowledges each tag event once the listeners have run so the EventQueue can send the next one,
+    // the id is added when the EventQueue sends the event
+    private static final String ACK_TEMPLATE = "\ncordova.exec(null, null, 'NfcPlugin', '" + EVENT_DELIVERED + "', [%d]);";
+
     private final List<IntentFilter> intentFilters = new ArrayList<IntentFilter>();
     private final ArrayList<String[]> techLists = new ArrayList<String[]>();
 
     private NdefMessage p2pMessage = null;
     private PendingIntent pendingIntent = null;
 
-    private Intent savedIntent = null;
+    // tags JavaScript can write to, by the handle sent with each event
+    private final TagTable tagTable = new TagTable(32, 60000);
+    // for writes and erases
+    private volatile RetryPolicy retryPolicy = RetryPolicy.NONE;
+
+    // reads Type 2 tags for readTag when set
+    private volatile UltralightReader ultralightReader = null;
+
+    // pre-serialized messages by id, see registerTemplate
+    private final Map<Integer, MessageTemplate> templates = new ConcurrentHashMap<Integer, MessageTemplate>();
+    private final AtomicInteger nextTemplateId = new AtomicInteger(1);
+
+    // event types with a JavaScript listener, events for other types wait in pendingEvents
+    // long enough for the page to load and register listeners, an older scan isn't delivered as if it were new
+    private static final long PENDING_EVENT_MAX_AGE = 30000;
+    private final Set<String> registeredTypes = new HashSet<String>();
+    private final Map<String, PendingEvent> pendingEvents = new HashMap<String, PendingEvent>();
+    // fields the listeners of each type asked for, all fields when a type isn't here
+    private final Map<String, Integer> eventFields = new ConcurrentHashMap<String, Integer>();
+
+    // swapped in whole from the thread pool while parseMessage and the discovery thread read it
+    private volatile UidFilter uidFilter = null;
+    // incremented by every set, load and clear so a slow load can't replace a newer filter
+    private int uidFilterGeneration = 0;
+    // content filters by event type
+    private final Map<String, NdefFilter> ndefFilters = new ConcurrentHashMap<String, NdefFilter>();
+
+    // optional, appended to from the discovery thread
+    private volatile ScanJournal journal = null;
+
+    // queries tags and builds events one discovery at a time, in the order the tags were discovered
+    private final ExecutorService discoveryExecutor = Executors.newSingleThreadExecutor();
+
+    private final EventQueue eventQueue = new EventQueue(new EventQueue.Sender() {
+        public void send(String command, long id) {
+            if (NfcLog.on(NfcLog.EVENT, Log.VERBOSE)) {
+                NfcLog.log(Log.VERBOSE, NfcLog.truncate(command));
+            }
+            webView.sendJavascript(command + String.format(Locale.US, ACK_TEMPLATE, id));
+        }
+
+        public void pressure(boolean underPressure, JSONObject stats) {
+            firePressureEvent(underPressure, stats);
+        }
+    });
+
+    // Runs at startup because the plugin is loaded with onload="true", long before deviceready.
+    // The tag that launched the activity is parsed now and delivered as soon as a listener registers.
+    @Override
+    public void initialize(CordovaInterface cordova, CordovaWebView webView) {
+        super.initialize(cordova, webView);
+
+        Intent intent = cordova.getActivity().getIntent();
+        if ((intent.getFlags() & Intent.FLAG_ACTIVITY_LAUNCHED_FROM_HISTORY) != 0) {
+            // relaunched from recent apps with the intent of the original launch, the tag is long gone
+            if (NfcLog.on(Log.INFO)) {
+                NfcLog.log(Log.INFO, "Launched from history, ignoring launch intent");
+            }
+            setIntent(new Intent());
+            return;
+        }
+        if (intent.getParcelableExtra(NfcAdapter.EXTRA_TAG) != null) {
+            parseMessage(intent);
+        }
+    }
 
     @Override
     public boolean execute(String action, JSONArray data, CallbackContext callbackContext) throws JSONException {
-        Log.d(TAG, "execute " + action);
+        if (NfcLog.on(NfcLog.EXECUTE, Log.DEBUG)) {
+            NfcLog.log(Log.DEBUG, "execute " + action);
+        }
         createPendingIntent();
 
         if (action.equalsIgnoreCase(REGISTER_MIME_TYPE)) {
@@ -61,39 +176,139 @@ public class NfcPlugin extends CordovaPlugin {
                 return false;
             }
             startNfc();
+            listenerRegistered(NDEF_MIME, data.optJSONArray(1), callbackContext);
             return true;
 
         } else if (action.equalsIgnoreCase(REGISTER_NDEF)) {
             addTechList(new String[]{Ndef.class.getName()});
             startNfc();
+            listenerRegistered(NDEF, data.optJSONArray(0), callbackContext);
             return true;
 
         } else if (action.equalsIgnoreCase(REGISTER_NDEF_FORMATABLE)) {
             addTechList(new String[]{NdefFormatable.class.getName()});
             startNfc();
+            listenerRegistered(NDEF_FORMATABLE, data.optJSONArray(0), callbackContext);
             return true;
 
         }  else if (action.equals(REGISTER_DEFAULT_TAG)) {
             addTagFilter();
             startNfc();
+            listenerRegistered(TAG_DEFAULT, data.optJSONArray(0), callbackContext);
             return true;
 
         } else if (action.equalsIgnoreCase(WRITE_TAG)) {
-            if (getIntent() == null) {  // TODO remove this and handle LostTag
-                callbackContext.error("Failed to write tag, received null intent");
+            NdefRecord[] records = Util.jsonToNdefRecords(data.getString(0));
+            final NdefMessage message = new NdefMessage(records);
+            runTagOperation(data.optInt(1, 0), retryPolicy, callbackContext, new TagOperation() {
+                public JSONObject run(Tag tag) throws TagWriteException, IOException, FormatException {
+                    writeTag(message, tag);
+                    return null;
+                }
+            });
+            return true;
+
+        } else if (action.equalsIgnoreCase(REGISTER_TEMPLATE)) {
+            NdefRecord[] records = Util.jsonToNdefRecords(data.getString(0));
+            try {
+                MessageTemplate template = new MessageTemplate(new NdefMessage(records), data.getJSONArray(1));
+                int id = nextTemplateId.getAndIncrement();
+                templates.put(id, template);
+                JSONObject result = new JSONObject();
+                result.put("template", id);
+                result.put("size", template.size());
+                callbackContext.success(result);
+            } catch (IllegalArgumentException e) {
+                callbackContext.error(e.getMessage());
             }
+            return true;
 
+        } else if (action.equalsIgnoreCase(WRITE_TEMPLATE)) {
+            final MessageTemplate template = templates.get(data.getInt(0));
+            if (template == null) {
+                callbackContext.error("Template " + data.getInt(0) + " is not registered");
+                return true;
+            }
+            // reserved once, retries write the same counter
+            final long counter = template.nextCounter();
+            runTagOperation(data.optInt(1, 0), retryPolicy, callbackContext, new TagOperation() {
+                public JSONObject run(Tag tag) throws TagWriteException, IOException, FormatException {
+                    writeTag(template.stamp(counter, tag.getId()), template.size(), tag);
+                    JSONObject result = new JSONObject();
+                    try {
+                        result.put("counter", counter);
+                    } catch (JSONException e) {
+                        // shouldn't happen
+                    }
+                    return result;
+                }
+            });
+            return true;
+
+        } else if (action.equalsIgnoreCase(REMOVE_TEMPLATE)) {
+            templates.remove(data.getInt(0));
+            callbackContext.success();
+            return true;
+
+        } else if (action.equalsIgnoreCase(ERASE_TAG)) {
+            runTagOperation(data.optInt(0, 0), retryPolicy, callbackContext, new TagOperation() {
+                public JSONObject run(Tag tag) throws TagWriteException, IOException, FormatException {
+                    NdefRecord empty = new NdefRecord(NdefRecord.TNF_EMPTY, new byte[0], new byte[0], new byte[0]);
+                    writeTag(new NdefMessage(new NdefRecord[]{ empty }), tag);
+                    return null;
+                }
+            });
+            return true;
+
+        } else if (action.equalsIgnoreCase(MAKE_READ_ONLY)) {
+            runTagOperation(data.optInt(0, 0), RetryPolicy.NONE, callbackContext, new TagOperation() {
+                public JSONObject run(Tag tag) throws TagWriteException, IOException, FormatException {
+                    makeReadOnly(tag);
+                    return null;
+                }
+            });
+            return true;
+
+        } else if (action.equalsIgnoreCase(READ_TAG)) {
+            runTagOperation(data.optInt(0, 0), RetryPolicy.NONE, callbackContext, new TagOperation() {
+                public JSONObject run(Tag tag) throws TagWriteException, IOException, FormatException {
+                    return readTag(tag);
+                }
+            });
+            return true;
+
+        } else if (action.equalsIgnoreCase(SET_FAST_READ)) {
+            JSONObject options = data.optJSONObject(0);
+            if (options == null) { options = new JSONObject(); }
+            try {
+                if (options.optBoolean("enabled", true)) {
+                    ultralightReader = new UltralightReader(options.optInt("pagesPerRead", 60), options.optBoolean("includeMemory", false));
+                } else {
+                    ultralightReader = null;
+                }
+                callbackContext.success();
+            } catch (IllegalArgumentException e) {
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+
+        } else if (action.equalsIgnoreCase(BENCHMARK_WRITE)) {
+            JSONObject options = data.optJSONObject(0);
+            if (options == null) { options = new JSONObject(); }
             try {
-                Tag tag = savedIntent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
-                NdefRecord[] records = Util.jsonToNdefRecords(data.getString(0));
-                writeTag(new NdefMessage(records), tag);
-            } catch (JSONException e) {
-                throw e;
-            } catch (Exception e) {
-                e.printStackTrace();
+                benchmarkWrite(new WriteBenchmark(options), options.optBoolean("saveBaseline", false), callbackContext);
+            } catch (IllegalArgumentException e) {
                 callbackContext.error(e.getMessage());
             }
+            return true;
 
+        } else if (action.equalsIgnoreCase(SET_RETRY_POLICY)) {
+            try {
+                retryPolicy = RetryPolicy.fromJSON(data.getJSONObject(0));
+                callbackContext.success(retryPolicy.toJSON());
+            } catch (IllegalArgumentException e) {
+                callbackContext.error(e.getMessage());
+            }
             return true;
 
         } else if (action.equalsIgnoreCase(SHARE_TAG)) {
@@ -110,17 +325,102 @@ public class NfcPlugin extends CordovaPlugin {
             stopNdefPush();
             return true;
 
+        } else if (action.equalsIgnoreCase(SET_UID_FILTER)) {
+            loadUidFilter(data.getString(0), data.getJSONArray(1), null, callbackContext);
+            return true;
+
+        } else if (action.equalsIgnoreCase(LOAD_UID_FILTER)) {
+            loadUidFilter(data.getString(0), null, data.getString(1), callbackContext);
+            return true;
+
+        } else if (action.equalsIgnoreCase(CLEAR_UID_FILTER)) {
+            installUidFilter(nextUidFilterGeneration(), null);
+            callbackContext.success();
+            return true;
+
+        } else if (action.equalsIgnoreCase(SET_NDEF_FILTER)) {
+            ndefFilters.put(data.getString(0), NdefFilter.compile(data.getJSONArray(1)));
+            callbackContext.success();
+            return true;
+
+        } else if (action.equalsIgnoreCase(CLEAR_NDEF_FILTER)) {
+            ndefFilters.remove(data.getString(0));
+            callbackContext.success();
+            return true;
+
+        } else if (action.equalsIgnoreCase(EVENT_DELIVERED)) {
+            eventQueue.acknowledge(data.optLong(0, 0));
+            return true;
+
+        } else if (action.equalsIgnoreCase(CONFIGURE_EVENT_QUEUE)) {
+            try {
+                eventQueue.configure(data.getJSONObject(0));
+                callbackContext.success(eventQueue.stats());
+            } catch (IllegalArgumentException e) {
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+
+        } else if (action.equalsIgnoreCase(GET_EVENT_QUEUE_STATS)) {
+            callbackContext.success(eventQueue.stats());
+            return true;
+
+        } else if (action.equalsIgnoreCase(ENABLE_JOURNAL)) {
+            JSONObject options = data.optJSONObject(0);
+            if (options == null) { options = new JSONObject(); }
+            try {
+                File directory = new File(getActivity().getFilesDir(), "nfc-journal");
+                // closed before the new journal opens the same files, if opening fails the journal stays disabled
+                ScanJournal previous = journal;
+                journal = null;
+                if (previous != null) {
+                    previous.close();
+                }
+                journal = new ScanJournal(directory, options.optInt("segmentSize", 256 * 1024), options.optInt("maxSegments", 4));
+                callbackContext.success(String.valueOf(journal.lastSeq()));
+            } catch (IllegalArgumentException e) {
+                callbackContext.error(e.getMessage());
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open journal", e);
+                callbackContext.error("Failed to open journal " + e.getMessage());
+            }
+            return true;
+
+        } else if (action.equalsIgnoreCase(DISABLE_JOURNAL)) {
+            ScanJournal previous = journal;
+            journal = null;
+            if (previous != null) {
+                previous.close();
+            }
+            callbackContext.success();
+            return true;
+
+        } else if (action.equalsIgnoreCase(REPLAY_JOURNAL)) {
+            replayJournal(data.optLong(0, 0), callbackContext);
+            return true;
+
+        } else if (action.equalsIgnoreCase(SET_LOG_LEVEL)) {
+            try {
+                NfcLog.configure(data.getJSONObject(0));
+                callbackContext.success(NfcLog.toJSON());
+            } catch (IllegalArgumentException e) {
+                callbackContext.error(e.getMessage());
+            }
+            return true;
+
         } else if (action.equalsIgnoreCase(INIT)) {
-            Log.d(TAG, "Enabling plugin " + getIntent());
+            if (NfcLog.on(Log.DEBUG)) {
+                NfcLog.log(Log.DEBUG, "Enabling plugin");
+            }
 
+            eventQueue.reset();
             startNfc();
-            if (!recycledIntent()) {
-                parseMessage();
-            }
             return true;
 
         }
-        Log.d(TAG, "no result");
+        if (NfcLog.on(Log.DEBUG)) {
+            NfcLog.log(Log.DEBUG, "no result");
+        }
         return false;
     }
 
@@ -166,7 +466,9 @@ public class NfcPlugin extends CordovaPlugin {
     }
 
     private void stopNfc() {
-        Log.d(TAG, "stopNfc");
+        if (NfcLog.on(Log.DEBUG)) {
+            NfcLog.log(Log.DEBUG, "stopNfc");
+        }
         getActivity().runOnUiThread(new Runnable() {
             public void run() {
 
@@ -230,156 +532,526 @@ public class NfcPlugin extends CordovaPlugin {
         return techLists.toArray(new String[0][0]);
     }
 
-    void parseMessage() {
-        Log.d(TAG, "parseMessage " + getIntent());
-        Intent intent = getIntent();
-        String action = intent.getAction();
-        Log.d(TAG, "action " + action);
+    // Runs on the UI thread and only does what has to happen before onNewIntent returns: the UID filter and
+    // the handle, so a write to the last scanned tag goes to this tag as soon as it's discovered.
+    // Querying the tag, serializing and dispatching happen on the discovery thread.
+    void parseMessage(Intent intent) {
+        final String action = intent.getAction();
+        if (NfcLog.on(NfcLog.INTENT, Log.DEBUG)) {
+            NfcLog.log(Log.DEBUG, "parseMessage " + intent + " action " + action);
+        }
         if (action == null) { return; }
 
-        Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
-        Parcelable[] messages = intent.getParcelableArrayExtra((NfcAdapter.EXTRA_NDEF_MESSAGES));
+        // consumed, a plugin created again in the same activity must not fire this tag a second time
+        setIntent(new Intent());
+
+        final Tag tag = intent.getParcelableExtra(NfcAdapter.EXTRA_TAG);
+
+        UidFilter filter = uidFilter;
+        if (filter != null && tag != null && !filter.accepts(tag.getId())) {
+            return;
+        }
+
+        final Parcelable[] messages = intent.getParcelableArrayExtra((NfcAdapter.EXTRA_NDEF_MESSAGES));
+        final int handle = tag == null ? 0 : tagTable.put(tag).handle;
+
+        discoveryExecutor.execute(new Runnable() {
+            public void run() {
+                try {
+                    fireEvents(action, tag, messages, handle);
+                } catch (RuntimeException e) {
+                    // keep the discovery thread for the next tag
+                    Log.e(TAG, "Failed to fire events for " + action, e);
+                }
+            }
+        });
+    }
+
+    private void fireEvents(String action, Tag tag, Parcelable[] messages, int handle) {
+        TagSnapshot snapshot = TagSnapshot.create(tag, messages);
 
         if (action.equals(NfcAdapter.ACTION_NDEF_DISCOVERED)) {
-            Ndef ndef = Ndef.get(tag);
-            fireNdefEvent(NDEF_MIME, ndef, messages);
+            fireEvent(NDEF_MIME, snapshot, handle, true);
 
         } else if (action.equals(NfcAdapter.ACTION_TECH_DISCOVERED)) {
-            for (String tagTech : tag.getTechList()) {
-                Log.d(TAG, tagTech);
-                if (tagTech.equals(NdefFormatable.class.getName())) {
-                    fireNdefEvent(NDEF_FORMATABLE, null, null);
-                } else if (tagTech.equals(Ndef.class.getName())) { //
-                    Ndef ndef = Ndef.get(tag);
-                    fireNdefEvent(NDEF, ndef, messages);
-                }
+            if (snapshot.ndefFormatable) {
+                fireEvent(NDEF_FORMATABLE, snapshot, handle, false);
+            }
+            if (snapshot.ndef) {
+                fireEvent(NDEF, snapshot, handle, true);
             }
         }
 
         if (action.equals(NfcAdapter.ACTION_TAG_DISCOVERED)) {
-            fireTagEvent(tag);
+            fireEvent(TAG_DEFAULT, snapshot, handle, false);
         }
+    }
 
-        setIntent(new Intent());
+    // tag and ndef-formatable events don't include the NDEF properties or message
+    private void fireEvent(String type, TagSnapshot snapshot, int handle, boolean includeNdef) {
+        NdefFilter filter = ndefFilters.get(type);
+        if (filter != null && !filter.matches(snapshot.message)) {
+            return;
+        }
+
+        Integer fields = eventFields.get(type);
+        String tag = snapshot.toJSON(includeNdef, fields == null ? TagSnapshot.ALL_FIELDS : fields, eventExtras(type, snapshot, handle, includeNdef));
+        String command = MessageFormat.format(EVENT_TEMPLATE, type, tag);
+        dispatchEvent(type, snapshot.id, command);
     }
 
-    private void fireNdefEvent(String type, Ndef ndef, Parcelable[] messages) {
+    // handle for tag operations, uidListed when the UID filter is flagging, journalSeq so JavaScript knows where to replay from
+    private String eventExtras(String type, TagSnapshot snapshot, int handle, boolean includeNdef) {
+        String extras = handle > 0 ? "\"handle\":" + handle : null;
 
-        String javascriptTemplate =
-            "var e = document.createEvent(''Events'');\n" +
-            "e.initEvent(''{0}'');\n" +
-            "e.tag = {1};\n" +
-            "document.dispatchEvent(e);";
+        UidFilter filter = uidFilter;
+        if (filter != null && filter.isFlagging() && snapshot.id != null) {
+            extras = (extras == null ? "" : extras + ",") + "\"uidListed\":" + filter.isListed(snapshot.id);
+        }
 
-        JSONObject jsonObject = buildNdefJSON(ndef, messages);
-        String tag = jsonObject.toString();
+        ScanJournal scanJournal = journal;
+        if (scanJournal != null) {
+            long seq = scanJournal.append(type, snapshot, includeNdef);
+            if (seq > 0) {
+                extras = (extras == null ? "" : extras + ",") + "\"journalSeq\":" + seq;
+            }
+        }
+        return extras;
+    }
 
-        String command = MessageFormat.format(javascriptTemplate, type, tag);
-        Log.v(TAG, command);
-        this.webView.sendJavascript(command);
+    // Until a listener registers for the type, the newest event is held instead of being fired to nobody
+    private void dispatchEvent(String type, byte[] uid, String command) {
+        synchronized (pendingEvents) {
+            if (!registeredTypes.contains(type)) {
+                pendingEvents.put(type, new PendingEvent(uid, command));
+                return;
+            }
+        }
+        eventQueue.offer(type, uid, command);
+    }
+
+    // fieldNames is null when the listener wants all fields, listeners of the same type get the union of their fields
+    private void listenerRegistered(String type, JSONArray fieldNames, CallbackContext callbackContext) throws JSONException {
+        int fields;
+        try {
+            fields = TagSnapshot.fields(fieldNames);
+        } catch (IllegalArgumentException e) {
+            callbackContext.error(e.getMessage());
+            return;
+        }
 
+        PendingEvent pending;
+        synchronized (pendingEvents) {
+            Integer current = registeredTypes.contains(type) ? eventFields.get(type) : null;
+            eventFields.put(type, current == null ? fields : current | fields);
+            registeredTypes.add(type);
+            pending = pendingEvents.remove(type);
+        }
+        if (pending != null && SystemClock.uptimeMillis() - pending.created <= PENDING_EVENT_MAX_AGE) {
+            eventQueue.offer(type, pending.uid, pending.command);
+        }
     }
 
-    private void fireTagEvent (Tag tag) {
+    // sent straight to the WebView, pressure events are never queued or acknowledged
+    private void firePressureEvent(boolean underPressure, JSONObject stats) {
         String javascriptTemplate =
             "var e = document.createEvent(''Events'');\n" +
             "e.initEvent(''{0}'');\n" +
-            "e.tag = {1};\n" +
+            "e.pressure = {1};\n" +
+            "e.stats = {2};\n" +
             "document.dispatchEvent(e);";
 
-        String command = MessageFormat.format(javascriptTemplate, TAG_DEFAULT, Util.tagToJSON(tag));
-        Log.v(TAG, command);
+        String command = MessageFormat.format(javascriptTemplate, PRESSURE, String.valueOf(underPressure), stats.toString());
+        if (NfcLog.on(NfcLog.EVENT, Log.VERBOSE)) {
+            NfcLog.log(Log.VERBOSE, command);
+        }
         this.webView.sendJavascript(command);
     }
 
-    JSONObject buildNdefJSON(Ndef ndef, Parcelable[] messages) {
+    // Large lists take a while to parse and insert, so the set is built on the thread pool.
+    // Either uids or path is set. The success callback gets the number of UIDs in the filter.
+    private void loadUidFilter(final String mode, final JSONArray uids, final String path, final CallbackContext callbackContext) {
+        final int generation = nextUidFilterGeneration();
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                try {
+                    UidSet set;
+                    if (uids != null) {
+                        set = new UidSet(uids.length());
+                        for (int i = 0; i < uids.length(); i++) {
+                            set.add(Util.jsonToByteArray(uids.getJSONArray(i)));
+                        }
+                    } else {
+                        set = Util.readUidSet(path);
+                    }
+                    if (installUidFilter(generation, new UidFilter(mode, set))) {
+                        callbackContext.success(set.size());
+                    } else {
+                        callbackContext.error("UID filter was replaced before it finished loading");
+                    }
+                } catch (IllegalArgumentException e) {
+                    callbackContext.error(e.getMessage());
+                } catch (JSONException e) {
+                    callbackContext.error(e.getMessage());
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to load UID filter " + path, e);
+                    callbackContext.error("Failed to load UID filter " + path + " " + e.getMessage());
+                }
+            }
+        });
+    }
 
-        JSONObject json = Util.ndefToJSON(ndef);
+    private synchronized int nextUidFilterGeneration() {
+        return ++uidFilterGeneration;
+    }
 
-        // ndef is null for peer-to-peer
-        // ndef and messages are null for ndef format-able
-        if (ndef == null && messages != null) {
+    // Returns false if another set, load or clear started after this one
+    private synchronized boolean installUidFilter(int generation, UidFilter filter) {
+        if (generation != uidFilterGeneration) {
+            return false;
+        }
+        uidFilter = filter;
+        return true;
+    }
 
-            try {
+    // Replayed events are sent to the callback one at a time, followed by a summary with done set to true
+    private void replayJournal(final long sinceSeq, final CallbackContext callbackContext) {
+        final ScanJournal scanJournal = journal;
+        if (scanJournal == null) {
+            callbackContext.error("Journal is not enabled");
+            return;
+        }
 
-                if (messages.length > 0) {
-                    NdefMessage message = (NdefMessage) messages[0];
-                    json.put("ndefMessage", Util.messageToJSON(message));
-                    // guessing type, would prefer a more definitive way to determine type
-                    json.put("type", "NDEF Push Protocol");
-                }
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                try {
+                    List<JSONObject> events = scanJournal.read(sinceSeq);
+                    for (JSONObject event : events) {
+                        PluginResult result = new PluginResult(PluginResult.Status.OK, event);
+                        result.setKeepCallback(true);
+                        callbackContext.sendPluginResult(result);
+                    }
 
-                if (messages.length > 1) {
-                    Log.wtf(TAG, "Expected one ndefMessage but found " + messages.length);
+                    JSONObject summary = new JSONObject();
+                    summary.put("done", true);
+                    summary.put("replayed", events.size());
+                    summary.put("lastSeq", scanJournal.lastSeq());
+                    callbackContext.success(summary);
+
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read journal", e);
+                    callbackContext.error("Failed to read journal " + e.getMessage());
+                } catch (JSONException e) {
+                    // shouldn't happen
+                    callbackContext.error(e.getMessage());
                 }
+            }
+        });
+    }
 
-            } catch (JSONException e) {
-                // shouldn't happen
-                Log.e(Util.TAG, "Failed to convert ndefMessage into json", e);
+    // Runs for seconds, on the thread pool so it doesn't hold up other actions
+    private void benchmarkWrite(final WriteBenchmark benchmark, final boolean saveBaseline, final CallbackContext callbackContext) {
+        final File baselineFile = new File(getActivity().getFilesDir(), "nfc-write-benchmark.json");
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                try {
+                    callbackContext.success(benchmark.run(baselineFile, saveBaseline));
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read or save the benchmark baseline", e);
+                    callbackContext.error("Failed to read or save the benchmark baseline " + e.getMessage());
+                } catch (Exception e) {
+                    // JSONException, FormatException or TagWriteException, the simulated messages are valid
+                    Log.e(TAG, "Write benchmark failed", e);
+                    callbackContext.error("Write benchmark failed " + e.getMessage());
+                }
             }
+        });
+    }
+
+    private interface TagOperation {
+        // returns the result for JavaScript or null
+        JSONObject run(Tag tag) throws TagWriteException, IOException, FormatException;
+    }
+
+    // Handle 0 is the most recently scanned tag. The handle picks which tag is written, not parallelism:
+    // Android only talks to the newest Tag, an earlier handle fails as out of date until its tag is scanned again.
+    // Operations run on the thread pool, operations on the same tag wait for each other.
+    // When the tag is lost the operation is retried with the newest Tag object for the same UID, which
+    // TagTable updates if the tag is discovered again. The result includes the number of attempts.
+    private void runTagOperation(int handle, final RetryPolicy policy, final CallbackContext callbackContext, final TagOperation operation) {
+        final TagTable.Entry entry = handle > 0 ? tagTable.get(handle) : tagTable.latest();
+        if (entry == null) {
+            callbackContext.error(handle > 0 ? "Tag handle " + handle + " is unknown or expired" : "No tag has been scanned");
+            return;
         }
-        return json;
+
+        cordova.getThreadPool().execute(new Runnable() {
+            public void run() {
+                synchronized (entry.operationLock) {
+                    long start = SystemClock.uptimeMillis();
+                    int attempt = 1;
+                    while (true) {
+                        Exception failure;
+                        try {
+                            JSONObject result = operation.run(entry.getTag());
+                            if (result == null) {
+                                result = new JSONObject();
+                            }
+                            result.put("attempts", attempt);
+                            callbackContext.success(result);
+                            return;
+
+                        } catch (TagWriteException e) {
+                            callbackContext.error(e.getMessage());
+                            return;
+                        } catch (FormatException e) {
+                            Log.e(TAG, "Tag operation failed", e);
+                            callbackContext.error(e.getMessage());
+                            return;
+                        } catch (JSONException e) {
+                            // shouldn't happen
+                            callbackContext.error(e.getMessage());
+                            return;
+                        } catch (IOException e) {
+                            // includes TagLostException, the tag may still be in the field
+                            failure = e;
+                        } catch (SecurityException e) {
+                            // the Tag is out of date because another tag was discovered since,
+                            // retried like a lost tag because scanning the same tag again refreshes the entry
+                            failure = e;
+                        } catch (RuntimeException e) {
+                            // e.g. IllegalStateException when another technology is connected,
+                            // thrown on a pool thread it would kill the app and the callback would never be called
+                            Log.e(TAG, "Tag operation failed", e);
+                            callbackContext.error(e.toString());
+                            return;
+                        }
+
+                        long delay = policy.delayBeforeAttempt(attempt + 1, SystemClock.uptimeMillis() - start);
+                        if (delay < 0) {
+                            Log.e(TAG, "Tag operation failed after " + attempt + " attempts", failure);
+                            String reason;
+                            if (failure instanceof TagLostException) {
+                                reason = "Tag was lost";
+                            } else if (failure instanceof SecurityException) {
+                                reason = "Tag is out of date, scan it again";
+                            } else {
+                                reason = failure.getMessage();
+                            }
+                            callbackContext.error(reason + " (" + attempt + (attempt == 1 ? " attempt)" : " attempts)"));
+                            return;
+                        }
+                        SystemClock.sleep(delay);
+                        attempt++;
+                    }
+                }
+            }
+        });
     }
 
     private void writeTag(NdefMessage message, Tag tag) throws TagWriteException, IOException, FormatException {
+        writeTag(message, message.toByteArray().length, tag);
+    }
+
+    // size is the length of the serialized message, templates know it without serializing again
+    private void writeTag(NdefMessage message, int size, Tag tag) throws TagWriteException, IOException, FormatException {
 
         Ndef ndef = Ndef.get(tag);
         if (ndef != null) {
-            ndef.connect();
-
-            if (!ndef.isWritable()) {
-                throw new TagWriteException("Tag is read only");
-            }
-
-            int size = message.toByteArray().length;
-            if (ndef.getMaxSize() < size) {
-                String errorMessage = "Tag capacity is " + ndef.getMaxSize() + " bytes, message is " + size + " bytes.";
-                throw new TagWriteException(errorMessage);
-            }
-            ndef.writeNdefMessage(message);
+            writeNdef(new NdefTagTarget(ndef), message, size);
         } else {
             NdefFormatable formatable = NdefFormatable.get(tag);
             if (formatable != null) {
                 formatable.connect();
-                formatable.format(message);
+                try {
+                    formatable.format(message);
+                } finally {
+                    close(formatable);
+                }
             } else {
                 throw new TagWriteException("Tag doesn't support NDEF");
             }
         }
     }
 
-    private boolean recycledIntent() { // TODO this is a kludge, find real solution
+    // WriteBenchmark measures this with a simulated target
+    static void writeNdef(NdefTarget target, NdefMessage message, int size) throws TagWriteException, IOException, FormatException {
+        target.connect();
+        try {
+            if (!target.isWritable()) {
+                throw new TagWriteException("Tag is read only");
+            }
 
-        int flags = getIntent().getFlags();
-        if ((flags & Intent.FLAG_ACTIVITY_LAUNCHED_FROM_HISTORY) == Intent.FLAG_ACTIVITY_LAUNCHED_FROM_HISTORY) {
-            Log.i(TAG, "Launched from history, killing recycled intent");
-            setIntent(new Intent());
-            return true;
+            Util.checkCapacity(target.getMaxSize(), size);
+            target.write(message);
+        } finally {
+            target.close();
+        }
+    }
+
+    private static class NdefTagTarget implements NdefTarget {
+        private final Ndef ndef;
+
+        NdefTagTarget(Ndef ndef) {
+            this.ndef = ndef;
+        }
+
+        public void connect() throws IOException {
+            ndef.connect();
+        }
+
+        public boolean isWritable() {
+            return ndef.isWritable();
+        }
+
+        public int getMaxSize() {
+            return ndef.getMaxSize();
+        }
+
+        public void write(NdefMessage message) throws IOException, FormatException {
+            ndef.writeNdefMessage(message);
+        }
+
+        public void close() {
+            NfcPlugin.close(ndef);
+        }
+    }
+
+    private void makeReadOnly(Tag tag) throws TagWriteException, IOException {
+        Ndef ndef = Ndef.get(tag);
+        if (ndef == null) {
+            throw new TagWriteException("Tag doesn't support NDEF");
+        }
+
+        ndef.connect();
+        try {
+            if (!ndef.canMakeReadOnly()) {
+                throw new TagWriteException("Tag can not be made read only");
+            }
+            if (!ndef.makeReadOnly()) {
+                throw new TagWriteException("Failed to make tag read only");
+            }
+        } finally {
+            close(ndef);
+        }
+    }
+
+    private JSONObject readTag(Tag tag) throws TagWriteException, IOException, FormatException {
+        UltralightReader reader = ultralightReader;
+        MifareUltralight ultralight = reader == null ? null : MifareUltralight.get(tag);
+        if (ultralight != null) {
+            UltralightReader.Result result = reader.read(ultralight);
+            if (result != null) {
+                JSONObject json = new JSONObject();
+                try {
+                    json.put("id", Util.byteArrayToJSON(tag.getId()));
+                    json.put("ndefMessage", Util.messageToJSON(result.message));
+                    json.put("fastRead", result.fastRead);
+                    json.put("commands", result.commands);
+                    if (result.memory != null) {
+                        json.put("memory", Util.byteArrayToJSON(result.memory));
+                    }
+                } catch (JSONException e) {
+                    // shouldn't happen
+                    Log.e(TAG, "Failed to convert tag into json", e);
+                }
+                return json;
+            }
+            // not formatted for NDEF, let Ndef report it
+        }
+
+        Ndef ndef = Ndef.get(tag);
+        if (ndef == null) {
+            throw new TagWriteException("Tag doesn't support NDEF");
+        }
+
+        NdefMessage message;
+        ndef.connect();
+        try {
+            message = ndef.getNdefMessage();
+        } finally {
+            close(ndef);
+        }
+
+        JSONObject json = new JSONObject();
+        try {
+            json.put("id", Util.byteArrayToJSON(tag.getId()));
+            json.put("ndefMessage", Util.messageToJSON(message));
+        } catch (JSONException e) {
+            // shouldn't happen
+            Log.e(TAG, "Failed to convert tag into json", e);
+        }
+        return json;
+    }
+
+    private static void close(TagTechnology technology) {
+        try {
+            technology.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close tag connection", e);
         }
-        return false;
     }
 
     @Override
     public void onPause(boolean multitasking) {
-        Log.d(TAG, "onPause " + getIntent());
+        if (NfcLog.on(Log.DEBUG)) {
+            NfcLog.log(Log.DEBUG, "onPause " + getIntent());
+        }
         super.onPause(multitasking);
         stopNfc();
     }
 
     @Override
     public void onResume(boolean multitasking) {
-        Log.d(TAG, "onResume " + getIntent());
+        if (NfcLog.on(Log.DEBUG)) {
+            NfcLog.log(Log.DEBUG, "onResume " + getIntent());
+        }
         super.onResume(multitasking);
         startNfc();
     }
 
+    // The page was reloaded, its listeners are gone and register again
+    @Override
+    public void onReset() {
+        super.onReset();
+        synchronized (pendingEvents) {
+            registeredTypes.clear();
+            eventFields.clear();
+        }
+        eventQueue.reset();
+    }
+
+    @Override
+    public void onDestroy() {
+        discoveryExecutor.shutdownNow();
+        // a reload creates a new plugin, which opens the journal again
+        ScanJournal previous = journal;
+        journal = null;
+        if (previous != null) {
+            previous.close();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onNewIntent(Intent intent) {
-        Log.d(TAG, "onNewIntent " + intent);
+        if (NfcLog.on(NfcLog.INTENT, Log.DEBUG)) {
+            NfcLog.log(Log.DEBUG, "onNewIntent " + intent);
+        }
         super.onNewIntent(intent);
         setIntent(intent);
-        savedIntent = intent;
-        parseMessage();
+        parseMessage(intent);
+    }
+
+    private static class PendingEvent {
+        final long created = SystemClock.uptimeMillis();
+        final byte[] uid;
+        final String command;
+
+        PendingEvent(byte[] uid, String command) {
+            this.uid = uid;
+            this.command = command;
+        }
     }
 
     private Activity getActivity() {
@@ -0,0 +1,52 @@
+package com.chariotsolutions.nfc.plugin;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+// How long a tag operation keeps retrying after the tag wobbles out of the field.
+// The backoff doubles after each failed attempt and no attempt starts after the deadline.
+class RetryPolicy {
+
+    static final RetryPolicy NONE = new RetryPolicy(1, 0, 0);
+
+    final int maxAttempts;
+    final long backoffMillis;
+    final long deadlineMillis;
+
+    RetryPolicy(int maxAttempts, long backoffMillis, long deadlineMillis) {
+        if (maxAttempts < 1 || backoffMillis < 0 || deadlineMillis < 0) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1, backoff and deadline can't be negative");
+        }
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.deadlineMillis = deadlineMillis;
+    }
+
+    static RetryPolicy fromJSON(JSONObject json) {
+        return new RetryPolicy(json.optInt("maxAttempts", 1), json.optLong("backoff", 50), json.optLong("deadline", 1000));
+    }
+
+    // Milliseconds to wait before the next attempt or -1 when there are no attempts left
+    long delayBeforeAttempt(int attempt, long elapsedMillis) {
+        if (attempt > maxAttempts) {
+            return -1;
+        }
+        long delay = backoffMillis << Math.min(attempt - 2, 16);
+        if (elapsedMillis + delay > deadlineMillis) {
+            return -1;
+        }
+        return delay;
+    }
+
+    JSONObject toJSON() {
+        JSONObject json = new JSONObject();
+        try {
+            json.put("maxAttempts", maxAttempts);
+            json.put("backoff", backoffMillis);
+            json.put("deadline", deadlineMillis);
+        } catch (JSONException e) {
+            // shouldn't happen
+        }
+        return json;
+    }
+}
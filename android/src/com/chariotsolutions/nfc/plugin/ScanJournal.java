@@ -0,0 +1,347 @@
+package com.chariotsolutions.nfc.plugin;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+// Append-only journal of tag events in memory mapped segment files.
+// Writes are sequential puts into the mapped segment, the kernel flushes them even if the WebView crashes.
+// The oldest segment is deleted when the journal would grow beyond maxSegments.
+//
+// Segment files are named after the first sequence number written to them.
+// The length of a record is written after the rest of it, a record cut off by a killed process reads as the end.
+//
+// Record layout, big endian
+//   int     length of the rest of the record, 0 marks the end of a segment
+//   long    sequence number
+//   long    timestamp
+//   byte    event type
+//   byte    uid length, uid
+//   short   tech bit set, see TECHS
+//   byte    flags, see FLAG_*
+//   byte    ndef type length, ndef type (UTF-8)
+//   int     max size
+//   int     message length (-1 for none), NdefMessage.toByteArray()
+class ScanJournal {
+
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".seg";
+
+    static final String[] EVENT_TYPES = { "tag", "ndef", "ndef-mime", "ndef-formatable" };
+
+    private static final String[] TECHS = {
+        "android.nfc.tech.NfcA", "android.nfc.tech.NfcB", "android.nfc.tech.NfcF", "android.nfc.tech.NfcV",
+        "android.nfc.tech.IsoDep", "android.nfc.tech.Ndef", "android.nfc.tech.NdefFormatable",
+        "android.nfc.tech.MifareClassic", "android.nfc.tech.MifareUltralight", "android.nfc.tech.NfcBarcode"
+    };
+
+    private static final int FLAG_NDEF = 0x01;
+    private static final int FLAG_WRITABLE = 0x02;
+    private static final int FLAG_CAN_MAKE_READ_ONLY_KNOWN = 0x04;
+    private static final int FLAG_CAN_MAKE_READ_ONLY = 0x08;
+
+    private static final int HEADER_SIZE = 4;
+    private static final int FIXED_SIZE = 8 + 8 + 1 + 1 + 2 + 1 + 1 + 4 + 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    private final List<File> segments = new ArrayList<File>();
+    private MappedByteBuffer active;
+    private long nextSeq = 1;
+    // set once the journal is disabled or replaced, another instance may own the directory by now
+    private boolean closed = false;
+
+    ScanJournal(File directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize < 1024 || maxSegments < 2) {
+            throw new IllegalArgumentException("Journal needs segments of at least 1024 bytes and at least 2 segments");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = maxSegments;
+        open();
+    }
+
+    // Returns the sequence number of the record or -1 if the event could not be journaled
+    synchronized long append(String type, TagSnapshot snapshot, boolean includeNdef) {
+        if (closed) {
+            return -1;
+        }
+        try {
+            byte[] uid = snapshot.id == null ? new byte[0] : snapshot.id;
+            byte[] ndefType = includeNdef && snapshot.type != null ? Util.utf8(snapshot.type) : new byte[0];
+            byte[] messageBytes = includeNdef && snapshot.message != null ? snapshot.message.toByteArray() : null;
+
+            int length = FIXED_SIZE + uid.length + Math.min(ndefType.length, 255) + (messageBytes == null ? 0 : messageBytes.length);
+            if (HEADER_SIZE + length + HEADER_SIZE > segmentSize) {
+                Log.w(Util.TAG, "Tag event is larger than a journal segment, not journaled");
+                return -1;
+            }
+            if (active == null || active.remaining() < HEADER_SIZE + length + HEADER_SIZE) {
+                rotate();
+            }
+
+            long seq = nextSeq++;
+            int start = active.position();
+            active.position(start + HEADER_SIZE);
+            active.putLong(seq);
+            active.putLong(System.currentTimeMillis());
+            active.put(typeCode(type));
+            active.put((byte) uid.length);
+            active.put(uid);
+            active.putShort(techBits(snapshot.techTypes));
+            active.put(includeNdef ? flags(snapshot) : 0);
+            active.put((byte) Math.min(ndefType.length, 255));
+            active.put(ndefType, 0, Math.min(ndefType.length, 255));
+            active.putInt(snapshot.maxSize);
+            if (messageBytes == null) {
+                active.putInt(-1);
+            } else {
+                active.putInt(messageBytes.length);
+                active.put(messageBytes);
+            }
+            // end marker, a record cut off before a restart may still be there
+            active.putInt(active.position(), 0);
+            active.putInt(start, length);
+            return seq;
+
+        } catch (IOException e) {
+            Log.e(Util.TAG, "Failed to rotate journal", e);
+            return -1;
+        }
+    }
+
+    // Each event is returned as an object with type and tag, in journal order
+    synchronized List<JSONObject> read(long sinceSeq) throws IOException {
+        List<JSONObject> events = new ArrayList<JSONObject>();
+        for (File segment : segments) {
+            ByteBuffer buffer = map(segment, FileChannel.MapMode.READ_ONLY);
+            try {
+                int length;
+                while (buffer.remaining() >= HEADER_SIZE && (length = buffer.getInt()) > 0) {
+                    int next = buffer.position() + length;
+                    if (buffer.getLong(buffer.position()) > sinceSeq) {
+                        events.add(decode(buffer));
+                    }
+                    buffer.position(next);
+                }
+            } catch (BufferUnderflowException e) {
+                Log.w(Util.TAG, "Truncated journal segment " + segment.getName());
+            } catch (IllegalArgumentException e) {
+                Log.w(Util.TAG, "Corrupt journal segment " + segment.getName());
+            }
+        }
+        return events;
+    }
+
+    synchronized long lastSeq() {
+        return nextSeq - 1;
+    }
+
+    synchronized void close() {
+        closed = true;
+        if (active != null) {
+            active.force();
+            active = null;
+        }
+    }
+
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create journal directory " + directory);
+        }
+
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }
+        });
+        Arrays.sort(files);  // names are zero padded sequence numbers
+        segments.addAll(Arrays.asList(files));
+
+        if (!segments.isEmpty()) {
+            File last = segments.get(segments.size() - 1);
+            // the name is the floor, the last segment may have no records yet
+            nextSeq = Math.max(1, firstSeq(last));
+            if (last.length() == segmentSize) {
+                // find the end of the last segment and continue writing there
+                active = map(last, FileChannel.MapMode.READ_WRITE);
+                skipRecords(active);
+            } else {
+                // segment size changed, start a new segment and keep reading the old ones
+                skipRecords(map(last, FileChannel.MapMode.READ_ONLY));
+            }
+        }
+    }
+
+    // Moves the buffer to the end of its records and nextSeq past them
+    private void skipRecords(ByteBuffer buffer) {
+        int length;
+        while (buffer.remaining() >= HEADER_SIZE + FIXED_SIZE && (length = buffer.getInt(buffer.position())) > 0
+                && length <= buffer.remaining() - HEADER_SIZE) {
+            long seq = buffer.getLong(buffer.position() + HEADER_SIZE);
+            if (seq < nextSeq) {
+                break;  // not a record of this segment
+            }
+            nextSeq = seq + 1;
+            buffer.position(buffer.position() + HEADER_SIZE + length);
+        }
+    }
+
+    private static long firstSeq(File segment) {
+        String name = segment.getName();
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (active != null) {
+            active.force();
+        }
+        while (segments.size() >= maxSegments) {
+            File oldest = segments.remove(0);
+            if (!oldest.delete()) {
+                Log.w(Util.TAG, "Failed to delete journal segment " + oldest.getName());
+            }
+        }
+        File segment = new File(directory, PREFIX + String.format(Locale.US, "%020d", nextSeq) + SUFFIX);
+        active = map(segment, FileChannel.MapMode.READ_WRITE);
+        segments.add(segment);
+    }
+
+    private MappedByteBuffer map(File file, FileChannel.MapMode mode) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            long size = mode == FileChannel.MapMode.READ_ONLY ? raf.length() : segmentSize;
+            return raf.getChannel().map(mode, 0, size);  // the mapping stays valid after the file is closed
+        } finally {
+            raf.close();
+        }
+    }
+
+    private JSONObject decode(ByteBuffer buffer) {
+        JSONObject event = new JSONObject();
+        JSONObject tag = new JSONObject();
+        try {
+            long seq = buffer.getLong();
+            long timestamp = buffer.getLong();
+            int type = buffer.get();
+
+            byte[] uid = new byte[buffer.get() & 0xFF];
+            buffer.get(uid);
+            short techBits = buffer.getShort();
+            int flags = buffer.get();
+            byte[] ndefType = new byte[buffer.get() & 0xFF];
+            buffer.get(ndefType);
+            int maxSize = buffer.getInt();
+            int messageLength = buffer.getInt();
+            byte[] messageBytes = null;
+            if (messageLength >= 0) {
+                messageBytes = new byte[messageLength];
+                buffer.get(messageBytes);
+            }
+
+            if (uid.length > 0) {
+                tag.put("id", Util.byteArrayToJSON(uid));
+            }
+            if (techBits != 0) {
+                JSONArray techTypes = new JSONArray();
+                for (int i = 0; i < TECHS.length; i++) {
+                    if ((techBits & (1 << i)) != 0) {
+                        techTypes.put(TECHS[i]);
+                    }
+                }
+                tag.put("techTypes", techTypes);
+            }
+            if (ndefType.length > 0) {
+                tag.put("type", new String(ndefType, "UTF-8"));
+            }
+            if ((flags & FLAG_NDEF) != 0) {
+                tag.put("maxSize", maxSize);
+                tag.put("isWritable", (flags & FLAG_WRITABLE) != 0);
+                if ((flags & FLAG_CAN_MAKE_READ_ONLY_KNOWN) != 0) {
+                    tag.put("canMakeReadOnly", (flags & FLAG_CAN_MAKE_READ_ONLY) != 0);
+                }
+            }
+            if (messageBytes != null) {
+                tag.put("ndefMessage", Util.messageToJSON(new NdefMessage(messageBytes)));
+            }
+            tag.put("journalSeq", seq);
+            tag.put("timestamp", timestamp);
+
+            event.put("type", type >= 0 && type < EVENT_TYPES.length ? EVENT_TYPES[type] : EVENT_TYPES[0]);
+            event.put("tag", tag);
+
+        } catch (JSONException e) {
+            // shouldn't happen
+            Log.e(Util.TAG, "Failed to convert journal record into json", e);
+        } catch (FormatException e) {
+            Log.e(Util.TAG, "Journaled ndefMessage is invalid", e);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+        }
+        return event;
+    }
+
+    private static byte typeCode(String type) {
+        for (int i = 0; i < EVENT_TYPES.length; i++) {
+            if (EVENT_TYPES[i].equals(type)) {
+                return (byte) i;
+            }
+        }
+        return -1;
+    }
+
+    private static short techBits(String[] techTypes) {
+        short bits = 0;
+        if (techTypes != null) {
+            for (String tech : techTypes) {
+                for (int i = 0; i < TECHS.length; i++) {
+                    if (TECHS[i].equals(tech)) {
+                        bits |= 1 << i;
+                    }
+                }
+            }
+        }
+        return bits;
+    }
+
+    private static byte flags(TagSnapshot snapshot) {
+        int flags = 0;
+        if (snapshot.ndef) {
+            flags |= FLAG_NDEF;
+        }
+        if (snapshot.writable) {
+            flags |= FLAG_WRITABLE;
+        }
+        Boolean canMakeReadOnly = snapshot.canMakeReadOnly();
+        if (canMakeReadOnly != null) {
+            flags |= FLAG_CAN_MAKE_READ_ONLY_KNOWN;
+            if (canMakeReadOnly) {
+                flags |= FLAG_CAN_MAKE_READ_ONLY;
+            }
+        }
+        return (byte) flags;
+    }
+}
@@ -0,0 +1,205 @@
+package com.chariotsolutions.nfc.plugin;
+
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.nfc.tech.Ndef;
+import android.nfc.tech.NdefFormatable;
+import android.os.Parcelable;
+import android.util.Log;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+// Everything the events need from one tag discovery.
+// The tag is queried once and each part of the JSON is serialized at most once,
+// every event fired for the discovery is assembled from the same parts.
+// canMakeReadOnly is a call to the NFC service, it's only made when an event or the journal asks for it.
+class TagSnapshot {
+
+    static final String NDEF_PUSH_PROTOCOL = "NDEF Push Protocol";
+
+    // fields of the tag JSON, listeners can ask for a subset
+    static final int ID = 1;
+    static final int TECH_TYPES = 1 << 1;
+    static final int TYPE = 1 << 2;
+    static final int MAX_SIZE = 1 << 3;
+    static final int IS_WRITABLE = 1 << 4;
+    static final int CAN_MAKE_READ_ONLY = 1 << 5;
+    static final int NDEF_MESSAGE = 1 << 6;
+    static final int ALL_FIELDS = (1 << 7) - 1;
+    private static final String[] FIELD_NAMES = { "id", "techTypes", "type", "maxSize", "isWritable", "canMakeReadOnly", "ndefMessage" };
+
+    final Tag tag;
+    final byte[] id;
+    final String[] techTypes;
+    final boolean ndef;
+    final boolean ndefFormatable;
+
+    // NDEF properties, only set when ndef is true
+    final String type;
+    final int maxSize;
+    final boolean writable;
+
+    // the cached message for NDEF tags, the pushed message for peer-to-peer
+    final NdefMessage message;
+
+    private final Ndef ndefTechnology;
+    private boolean canMakeReadOnlyQueried;
+    private Boolean canMakeReadOnly;
+
+    private String idJSON;
+    private String techTypesJSON;
+    private String messageJSON;
+
+    private TagSnapshot(Tag tag, Ndef ndef, boolean ndefFormatable, NdefMessage pushed) {
+        this.tag = tag;
+        this.id = tag == null ? null : tag.getId();
+        this.techTypes = tag == null ? null : tag.getTechList();
+        this.ndef = ndef != null;
+        this.ndefFormatable = ndefFormatable;
+        this.ndefTechnology = ndef;
+
+        // these come from the extras Android read at discovery, only canMakeReadOnly talks to the NFC service
+        if (ndef != null) {
+            type = Util.translateType(ndef.getType());
+            maxSize = ndef.getMaxSize();
+            writable = ndef.isWritable();
+            message = ndef.getCachedNdefMessage();
+        } else {
+            type = pushed == null ? null : NDEF_PUSH_PROTOCOL;  // guessing type, would prefer a more definitive way to determine type
+            maxSize = 0;
+            writable = false;
+            message = pushed;
+        }
+    }
+
+    // null when the tag isn't NDEF, the tag service isn't available or a newer tag has been discovered
+    synchronized Boolean canMakeReadOnly() {
+        if (!canMakeReadOnlyQueried && ndefTechnology != null) {
+            canMakeReadOnly = canMakeReadOnly(ndefTechnology);
+        }
+        canMakeReadOnlyQueried = true;
+        return canMakeReadOnly;
+    }
+
+    // names is an array of field names, null for all fields
+    static int fields(JSONArray names) throws JSONException {
+        if (names == null) {
+            return ALL_FIELDS;
+        }
+        int fields = 0;
+        for (int i = 0; i < names.length(); i++) {
+            String name = names.getString(i);
+            int field = 0;
+            for (int j = 0; j < FIELD_NAMES.length; j++) {
+                if (FIELD_NAMES[j].equals(name)) {
+                    field = 1 << j;
+                }
+            }
+            if (field == 0) {
+                throw new IllegalArgumentException("Invalid field " + name);
+            }
+            fields |= field;
+        }
+        return fields;
+    }
+
+    // ndef is null for peer-to-peer, ndef and messages are null for ndef format-able
+    static TagSnapshot create(Tag tag, Parcelable[] messages) {
+        Ndef ndef = null;
+        boolean ndefFormatable = false;
+        if (tag != null) {
+            for (String tech : tag.getTechList()) {
+                if (tech.equals(Ndef.class.getName())) {
+                    ndef = Ndef.get(tag);
+                } else if (tech.equals(NdefFormatable.class.getName())) {
+                    ndefFormatable = true;
+                }
+            }
+        }
+
+        NdefMessage pushed = null;
+        if (ndef == null && messages != null && messages.length > 0) {
+            pushed = (NdefMessage) messages[0];
+            if (messages.length > 1) {
+                Log.wtf(Util.TAG, "Expected one ndefMessage but found " + messages.length);
+            }
+        }
+
+        return new TagSnapshot(tag, ndef, ndefFormatable, pushed);
+    }
+
+    // fields is a mask of the fields to include, extras is a list of additional "name":value pairs or null
+    synchronized String toJSON(boolean includeNdef, int fields, String extras) {
+        boolean includeMessage = includeNdef && message != null && (fields & NDEF_MESSAGE) != 0;
+        StringBuilder json = new StringBuilder(includeMessage ? 512 : 128);
+        json.append('{');
+
+        if (tag != null) {
+            if ((fields & ID) != 0) {
+                if (idJSON == null) {
+                    idJSON = "\"id\":" + Util.byteArrayToJSON(id).toString();
+                }
+                json.append(idJSON);
+            }
+            if ((fields & TECH_TYPES) != 0) {
+                if (techTypesJSON == null) {
+                    techTypesJSON = "\"techTypes\":" + new JSONArray(Arrays.asList(techTypes)).toString();
+                }
+                separate(json).append(techTypesJSON);
+            }
+        }
+
+        if (includeNdef) {
+            if (type != null && (fields & TYPE) != 0) {
+                separate(json).append("\"type\":").append(JSONObject.quote(type));
+            }
+            if (ndef) {
+                if ((fields & MAX_SIZE) != 0) {
+                    separate(json).append("\"maxSize\":").append(maxSize);
+                }
+                if ((fields & IS_WRITABLE) != 0) {
+                    separate(json).append("\"isWritable\":").append(writable);
+                }
+                if ((fields & CAN_MAKE_READ_ONLY) != 0 && canMakeReadOnly() != null) {
+                    separate(json).append("\"canMakeReadOnly\":").append(canMakeReadOnly);
+                }
+            }
+
+            if (includeMessage) {
+                if (messageJSON == null) {
+                    messageJSON = "\"ndefMessage\":" + Util.messageToJSON(message).toString();
+                }
+                separate(json).append(messageJSON);
+            }
+        }
+
+        if (extras != null) {
+            separate(json).append(extras);
+        }
+        return json.append('}').toString();
+    }
+
+    private static StringBuilder separate(StringBuilder json) {
+        if (json.length() > 1) {
+            json.append(',');
+        }
+        return json;
+    }
+
+    // Workaround for bug in ICS (Android 4.0 and 4.0.1) where
+    // mTag.getTagService(); of the Ndef object sometimes returns null
+    // see http://issues.mroland.at/index.php?do=details&task_id=47
+    private static Boolean canMakeReadOnly(Ndef ndef) {
+        try {
+            return ndef.canMakeReadOnly();
+        } catch (NullPointerException e) {
+            return null;
+        } catch (SecurityException e) {
+            // asked after another tag was discovered, the Tag is out of date, fire the event without it
+            return null;
+        }
+    }
+}
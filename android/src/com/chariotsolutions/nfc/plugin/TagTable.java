@@ -0,0 +1,102 @@
+package com.chariotsolutions.nfc.plugin;
+
+import android.nfc.Tag;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+// Recently discovered tags by handle, so JavaScript can operate on any of them instead of only the last one.
+// Scanning the same UID again refreshes the existing entry and keeps its handle.
+// The table holds at most capacity tags and forgets tags that haven't been seen for maxAgeMillis.
+class TagTable {
+
+    static class Entry {
+        final int handle;
+        final byte[] uid;
+        // held while connected, operations on the same tag run one at a time
+        final Object operationLock = new Object();
+        private Tag tag;
+        private long seen;
+
+        Entry(int handle, Tag tag) {
+            this.handle = handle;
+            this.uid = tag.getId();
+            this.tag = tag;
+            this.seen = SystemClock.uptimeMillis();
+        }
+
+        // the Tag object is replaced when the tag is scanned again
+        synchronized Tag getTag() {
+            return tag;
+        }
+
+        private synchronized void refresh(Tag tag) {
+            this.tag = tag;
+            this.seen = SystemClock.uptimeMillis();
+        }
+
+        private synchronized long getSeen() {
+            return seen;
+        }
+    }
+
+    private final int capacity;
+    private final long maxAgeMillis;
+    // least recently seen first
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<Integer, Entry>();
+    private int nextHandle = 1;
+
+    TagTable(int capacity, long maxAgeMillis) {
+        this.capacity = capacity;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    synchronized Entry put(Tag tag) {
+        expire();
+        for (Entry entry : entries.values()) {
+            if (Arrays.equals(entry.uid, tag.getId())) {
+                entry.refresh(tag);
+                entries.remove(entry.handle);  // move to the most recently seen end
+                entries.put(entry.handle, entry);
+                return entry;
+            }
+        }
+
+        Entry entry = new Entry(nextHandle++, tag);
+        entries.put(entry.handle, entry);
+        if (entries.size() > capacity) {
+            Iterator<Entry> eldest = entries.values().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return entry;
+    }
+
+    // Returns null if the handle is unknown or expired
+    synchronized Entry get(int handle) {
+        expire();
+        return entries.get(handle);
+    }
+
+    // The most recently seen tag or null
+    synchronized Entry latest() {
+        expire();
+        Entry latest = null;
+        for (Entry entry : entries.values()) {
+            latest = entry;
+        }
+        return latest;
+    }
+
+    private void expire() {
+        long now = SystemClock.uptimeMillis();
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+            if (now - i.next().getSeen() <= maxAgeMillis) {
+                break;
+            }
+            i.remove();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.chariotsolutions.nfc.plugin;
+
+// Decides which tags are dispatched based on their UID, before any JSON is built
+class UidFilter {
+
+    static final String ALLOW = "allow";
+    static final String DENY = "deny";
+    static final String FLAG = "flag";
+
+    private static final int MODE_ALLOW = 0;
+    private static final int MODE_DENY = 1;
+    private static final int MODE_FLAG = 2;
+
+    private final UidSet uids;
+    private final int mode;
+
+    UidFilter(String mode, UidSet uids) {
+        this.uids = uids;
+        this.mode = parseMode(mode);
+    }
+
+    // Rejected tags should be dropped without firing any events
+    boolean accepts(byte[] uid) {
+        switch (mode) {
+            case MODE_ALLOW:
+                return uids.contains(uid);
+            case MODE_DENY:
+                return !uids.contains(uid);
+            default:
+                return true;
+        }
+    }
+
+    boolean isFlagging() {
+        return mode == MODE_FLAG;
+    }
+
+    boolean isListed(byte[] uid) {
+        return uids.contains(uid);
+    }
+
+    private static int parseMode(String mode) {
+        if (ALLOW.equals(mode)) {
+            return MODE_ALLOW;
+        } else if (DENY.equals(mode)) {
+            return MODE_DENY;
+        } else if (FLAG.equals(mode)) {
+            return MODE_FLAG;
+        }
+        throw new IllegalArgumentException("Invalid UID filter mode " + mode);
+    }
+}
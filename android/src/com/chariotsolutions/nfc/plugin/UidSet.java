@@ -0,0 +1,142 @@
+package com.chariotsolutions.nfc.plugin;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// Open addressing set of tag UIDs stored in primitive arrays.
+// A UID of up to 10 bytes is packed into a long (first 8 bytes) and an int (length and last 2 bytes),
+// so lookups are exact and never allocate.
+class UidSet {
+
+    static final int MAX_UID_LENGTH = 10;
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] heads;
+    private int[] tails;  // 0 marks an empty slot, packed tails always include a non-zero length
+    private int mask;
+    private int size;
+
+    UidSet(int expectedSize) {
+        int capacity = 16;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean add(byte[] uid) {
+        checkLength(uid);
+        if (size + 1 > heads.length * LOAD_FACTOR) {
+            rehash(heads.length << 1);
+        }
+        return insert(head(uid), tail(uid));
+    }
+
+    boolean contains(byte[] uid) {
+        if (uid == null || uid.length == 0 || uid.length > MAX_UID_LENGTH) {
+            return false;
+        }
+        long head = head(uid);
+        int tail = tail(uid);
+        int slot = hash(head, tail) & mask;
+        while (tails[slot] != 0) {
+            if (heads[slot] == head && tails[slot] == tail) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    // Reads UIDs packed as a length byte followed by the UID bytes, repeated until the end of the stream.
+    static UidSet read(InputStream in, int expectedSize) throws IOException {
+        UidSet set = new UidSet(expectedSize);
+        byte[][] buffers = new byte[MAX_UID_LENGTH + 1][];
+        int length;
+        while ((length = in.read()) != -1) {
+            if (length == 0 || length > MAX_UID_LENGTH) {
+                throw new IOException("Invalid UID length " + length + " after " + set.size() + " UIDs");
+            }
+            if (buffers[length] == null) {
+                buffers[length] = new byte[length];
+            }
+            byte[] uid = buffers[length];
+            int read = 0;
+            while (read < length) {
+                int count = in.read(uid, read, length - read);
+                if (count == -1) {
+                    throw new EOFException("Truncated UID after " + set.size() + " UIDs");
+                }
+                read += count;
+            }
+            set.add(uid);
+        }
+        return set;
+    }
+
+    private boolean insert(long head, int tail) {
+        int slot = hash(head, tail) & mask;
+        while (tails[slot] != 0) {
+            if (heads[slot] == head && tails[slot] == tail) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        heads[slot] = head;
+        tails[slot] = tail;
+        size++;
+        return true;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldHeads = heads;
+        int[] oldTails = tails;
+        allocate(capacity);
+        for (int i = 0; i < oldTails.length; i++) {
+            if (oldTails[i] != 0) {
+                insert(oldHeads[i], oldTails[i]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        heads = new long[capacity];
+        tails = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    private static void checkLength(byte[] uid) {
+        if (uid == null || uid.length == 0 || uid.length > MAX_UID_LENGTH) {
+            throw new IllegalArgumentException("UID must be 1 to " + MAX_UID_LENGTH + " bytes");
+        }
+    }
+
+    private static long head(byte[] uid) {
+        long head = 0;
+        int end = Math.min(uid.length, 8);
+        for (int i = 0; i < end; i++) {
+            head = (head << 8) | (uid[i] & 0xFF);
+        }
+        return head;
+    }
+
+    private static int tail(byte[] uid) {
+        int tail = uid.length << 16;
+        for (int i = 8; i < uid.length; i++) {
+            tail |= (uid[i] & 0xFF) << ((9 - i) * 8);
+        }
+        return tail;
+    }
+
+    private static int hash(long head, int tail) {
+        long h = (head ^ ((long) tail << 32)) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29));
+    }
+}
@@ -0,0 +1,154 @@
+package com.chariotsolutions.nfc.plugin;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.nfc.tech.MifareUltralight;
+
+import java.io.IOException;
+
+// Reads NFC Forum Type 2 tags (NTAG, Ultralight) with as few commands as possible.
+// FAST_READ returns a range of pages in one command, tags without it fall back to READ, which returns 4 pages.
+// Only the memory up to the end of the NDEF message is read, unless includeMemory asks for all of it.
+class UltralightReader {
+
+    static class Result {
+        final NdefMessage message;  // null when the tag has no NDEF message
+        final byte[] memory;        // the data area, null unless includeMemory is set
+        final int commands;
+        final boolean fastRead;
+
+        Result(NdefMessage message, byte[] memory, int commands, boolean fastRead) {
+            this.message = message;
+            this.memory = memory;
+            this.commands = commands;
+            this.fastRead = fastRead;
+        }
+    }
+
+    private static final byte FAST_READ = 0x3A;
+    private static final int CC_PAGE = 3;
+    private static final int FIRST_DATA_PAGE = 4;
+    private static final int PAGES_PER_READ = 4;
+
+    private static final int TLV_NULL = 0x00;
+    private static final int TLV_NDEF_MESSAGE = 0x03;
+    private static final int TLV_TERMINATOR = 0xFE;
+    private static final int[] NO_MESSAGE = { -1, 0 };
+
+    // 60 pages is 240 bytes, below the 253 byte transceive limit of most controllers
+    final int pagesPerFastRead;
+    final boolean includeMemory;
+
+    UltralightReader(int pagesPerFastRead, boolean includeMemory) {
+        if (pagesPerFastRead < PAGES_PER_READ || pagesPerFastRead > 63) {
+            throw new IllegalArgumentException("pagesPerRead must be between 4 and 63");
+        }
+        this.pagesPerFastRead = pagesPerFastRead;
+        this.includeMemory = includeMemory;
+    }
+
+    // Returns null if the tag isn't formatted for NDEF
+    Result read(MifareUltralight tag) throws IOException, FormatException {
+        tag.connect();
+        try {
+            // READ returns pages 3 to 6, the capability container and the first 12 bytes of data
+            byte[] pages = tag.readPages(CC_PAGE);
+            int commands = 1;
+            if ((pages[0] & 0xFF) != 0xE1) {
+                return null;
+            }
+
+            byte[] memory = new byte[(pages[2] & 0xFF) * 8];
+            int available = Math.min(memory.length, pages.length - MifareUltralight.PAGE_SIZE);
+            System.arraycopy(pages, MifareUltralight.PAGE_SIZE, memory, 0, available);
+
+            boolean fastRead = true;
+            int[] ndef = findNdefMessage(memory, available);
+            while (available < memory.length && (includeMemory || ndef == null || ndef[0] + ndef[1] > available)) {
+                int page = FIRST_DATA_PAGE + available / MifareUltralight.PAGE_SIZE;
+                int remainingPages = (memory.length - available + MifareUltralight.PAGE_SIZE - 1) / MifareUltralight.PAGE_SIZE;
+
+                byte[] data = null;
+                if (fastRead) {
+                    int count = Math.min(pagesPerFastRead, remainingPages);
+                    try {
+                        data = tag.transceive(new byte[]{ FAST_READ, (byte) page, (byte) (page + count - 1) });
+                        if (data.length != count * MifareUltralight.PAGE_SIZE) {
+                            data = null;  // NAK
+                        }
+                    } catch (IOException e) {
+                        // not supported, the tag needs to be selected again after an unknown command
+                    }
+                    if (data == null) {
+                        fastRead = false;
+                        tag.close();
+                        tag.connect();
+                    }
+                }
+                if (data == null) {
+                    data = tag.readPages(page);
+                }
+                commands++;
+
+                int length = Math.min(data.length, memory.length - available);
+                System.arraycopy(data, 0, memory, available, length);
+                available += length;
+                ndef = findNdefMessage(memory, available);
+            }
+
+            if (ndef == null) {
+                ndef = NO_MESSAGE;  // ran out of memory without finding the NDEF message or a terminator
+            } else if (ndef[0] + ndef[1] > memory.length) {
+                throw new FormatException("NDEF message is " + ndef[1] + " bytes, the tag holds " + memory.length);
+            }
+
+            NdefMessage message = null;
+            if (ndef[0] >= 0 && ndef[1] > 0) {
+                byte[] bytes = new byte[ndef[1]];
+                System.arraycopy(memory, ndef[0], bytes, 0, bytes.length);
+                message = new NdefMessage(bytes);
+            }
+            return new Result(message, includeMemory ? memory : null, commands, fastRead);
+        } finally {
+            try {
+                tag.close();
+            } catch (IOException e) {
+                // already lost
+            }
+        }
+    }
+
+    // Returns the offset and length of the NDEF message in the data area, NO_MESSAGE if there isn't one
+    // or null when more memory is needed to find it.
+    // Lock and memory control TLVs are skipped, on NTAG and Ultralight the areas they describe are after the data area.
+    static int[] findNdefMessage(byte[] memory, int available) {
+        int pos = 0;
+        while (pos < available) {
+            int type = memory[pos] & 0xFF;
+            if (type == TLV_NULL) {
+                pos++;
+                continue;
+            }
+            if (type == TLV_TERMINATOR) {
+                return NO_MESSAGE;
+            }
+            if (pos + 1 >= available) {
+                return null;
+            }
+            int length = memory[pos + 1] & 0xFF;
+            int header = 2;
+            if (length == 0xFF) {
+                if (pos + 3 >= available) {
+                    return null;
+                }
+                length = ((memory[pos + 2] & 0xFF) << 8) | (memory[pos + 3] & 0xFF);
+                header = 4;
+            }
+            if (type == TLV_NDEF_MESSAGE) {
+                return new int[]{ pos + header, length };
+            }
+            pos += header + length;
+        }
+        return pos >= memory.length ? NO_MESSAGE : null;
+    }
+}
@@ -2,67 +2,25 @@ package com.chariotsolutions.nfc.plugin;
 
 import android.nfc.NdefMessage;
 import android.nfc.NdefRecord;
-import android.nfc.Tag;
 import android.nfc.tech.Ndef;
 import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 public class Util {
 
     static final String TAG = "NfcPlugin";
 
-    static JSONObject ndefToJSON(Ndef ndef) {
-        JSONObject json = new JSONObject();
-
-        if (ndef != null) {
-            try {
-
-                Tag tag = ndef.getTag();
-                // tag is going to be null for NDEF_FORMATABLE until NfcUtil.parseMessage is refactored
-                if (tag != null) {
-                    json.put("id", byteArrayToJSON(tag.getId()));
-                    json.put("techTypes", new JSONArray(Arrays.asList(tag.getTechList())));
-                }
-
-                json.put("type", translateType(ndef.getType()));
-                json.put("maxSize", ndef.getMaxSize());
-                json.put("isWritable", ndef.isWritable());
-                json.put("ndefMessage", messageToJSON(ndef.getCachedNdefMessage()));
-                // Workaround for bug in ICS (Android 4.0 and 4.0.1) where
-                // mTag.getTagService(); of the Ndef object sometimes returns null
-                // see http://issues.mroland.at/index.php?do=details&task_id=47
-                try {
-                  json.put("canMakeReadOnly", ndef.canMakeReadOnly());
-                } catch (NullPointerException e) {
-                  json.put("canMakeReadOnly", null);
-                }
-            } catch (JSONException e) {
-                Log.e(TAG, "Failed to convert ndef into json: " + ndef.toString(), e);
-            }
-        }
-        return json;
-    }
-
-    static JSONObject tagToJSON(Tag tag) {
-        JSONObject json = new JSONObject();
-
-        if (tag != null) {
-            try {
-                json.put("id", byteArrayToJSON(tag.getId()));
-                json.put("techTypes", new JSONArray(Arrays.asList(tag.getTechList())));
-            } catch (JSONException e) {
-                Log.e(TAG, "Failed to convert tag into json: " + tag.toString(), e);
-            }
-        }
-        return json;
-    }
-
     static String translateType(String type) {
         String translation;
         if (type.equals(Ndef.NFC_FORUM_TYPE_1)) {
@@ -109,6 +67,32 @@ public class Util {
         return b;
     }
 
+    static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);  // UTF-8 is always supported
+        }
+    }
+
+    static void checkCapacity(int maxSize, int size) throws TagWriteException {
+        if (maxSize < size) {
+            throw new TagWriteException("Tag capacity is " + maxSize + " bytes, message is " + size + " bytes.");
+        }
+    }
+
+    // UID files are packed as a length byte followed by the UID bytes for each tag
+    static UidSet readUidSet(String path) throws IOException {
+        File file = new File(path);
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 8192);
+        try {
+            // 4 and 7 byte UIDs are the common case, size the set up front to avoid rehashing
+            return UidSet.read(in, (int) (file.length() / 5));
+        } finally {
+            in.close();
+        }
+    }
+
     static JSONArray messageToJSON(NdefMessage message) {
         if (message == null) {
             return null;
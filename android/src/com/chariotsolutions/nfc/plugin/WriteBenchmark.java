@@ -0,0 +1,274 @@
+package com.chariotsolutions.nfc.plugin;
+
+import android.nfc.FormatException;
+import android.nfc.NdefMessage;
+import android.os.Build;
+import android.os.Debug;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Measures the write path, from the JSON JavaScript sends through NfcPlugin.writeNdef, against a simulated tag.
+// The simulated tag serializes the message like Ndef.writeNdefMessage, then sleeps latency milliseconds
+// plus perByte microseconds for each byte, standing in for the RF transfer.
+// Overhead is the time spent outside that sleep.
+// Results are compared with a baseline saved on the same device with the same options,
+// a case that writes fewer messages per second, takes more overhead or allocates more is a regression.
+class WriteBenchmark {
+
+    private static final byte[] SIMULATED_UID = { 4, 96, 117, 74, -17, 34, -128 };
+    private static final byte[] MIME_TYPE = { 't', 'e', 'x', 't', '/', 'p', 'g' };
+
+    private final int iterations;
+    private final int warmup;
+    private final long latencyMillis;
+    private final int perByteMicros;
+    private final int capacity;
+    private final double tolerance;
+
+    WriteBenchmark(JSONObject options) {
+        iterations = options.optInt("iterations", 200);
+        warmup = options.optInt("warmup", 20);
+        latencyMillis = options.optLong("latency", 10);
+        perByteMicros = options.optInt("perByte", 0);
+        capacity = options.optInt("capacity", 868);  // NTAG216
+        tolerance = options.optDouble("tolerance", 0.1);
+        if (iterations < 1 || warmup < 0 || latencyMillis < 0 || perByteMicros < 0 || capacity < 32 || tolerance < 0) {
+            throw new IllegalArgumentException("iterations must be at least 1, capacity at least 32, the other options can't be negative");
+        }
+    }
+
+    JSONObject run(File baselineFile, boolean saveBaseline) throws JSONException, FormatException, TagWriteException, IOException {
+        String small = messageJSON(new byte[]{ 'H', 'e', 'l', 'l', 'o' });
+        String nearCapacity = messageJSON(new byte[capacity - (capacity > 265 ? 13 : 10)]);
+
+        JSONArray fields = new JSONArray("[{\"type\":\"counter\",\"record\":0,\"length\":6,\"format\":\"ascii\"}]");
+        MessageTemplate template = new MessageTemplate(new NdefMessage(Util.jsonToNdefRecords(nearCapacity)), fields);
+
+        JSONObject cases = new JSONObject();
+        Debug.startAllocCounting();
+        try {
+            cases.put("small", measure(small, null));
+            cases.put("nearCapacity", measure(nearCapacity, null));
+            cases.put("nearCapacityTemplate", measure(null, template));
+        } finally {
+            Debug.stopAllocCounting();
+        }
+
+        JSONObject result = new JSONObject();
+        result.put("device", Build.MODEL);
+        result.put("options", options());
+        result.put("cases", cases);
+
+        JSONObject baseline = readBaseline(baselineFile);
+        if (baseline != null && Build.MODEL.equals(baseline.optString("device")) && baseline.optJSONObject("options") != null &&
+                sameOptions(baseline.getJSONObject("options"))) {
+            JSONArray regressions = compare(cases, baseline.getJSONObject("cases"));
+            result.put("baseline", baseline.getJSONObject("cases"));
+            result.put("regressions", regressions);
+            result.put("passed", regressions.length() == 0);
+        } else {
+            // nothing to compare with, a baseline from other options or another device isn't comparable
+            result.put("passed", true);
+        }
+
+        if (saveBaseline) {
+            JSONObject newBaseline = new JSONObject();
+            newBaseline.put("device", Build.MODEL);
+            newBaseline.put("options", options());
+            newBaseline.put("cases", cases);
+            writeBaseline(baselineFile, newBaseline);
+        }
+        return result;
+    }
+
+    // json is converted like the writeTag action does, or the template is stamped like writeTemplate does
+    private JSONObject measure(String ndefMessageAsJSON, MessageTemplate template)
+            throws JSONException, FormatException, TagWriteException, IOException {
+        SimulatedTag tag = new SimulatedTag();
+        long[] overhead = new long[iterations];
+        long[] total = new long[iterations];
+        long allocations = 0;
+        int size = 0;
+
+        for (int i = -warmup; i < iterations; i++) {
+            Debug.resetThreadAllocCount();
+            tag.sleptNanos = 0;
+            long start = System.nanoTime();
+
+            NdefMessage message;
+            if (template == null) {
+                message = new NdefMessage(Util.jsonToNdefRecords(ndefMessageAsJSON));
+                size = message.toByteArray().length;
+            } else {
+                message = template.stamp(template.nextCounter() % 1000000, SIMULATED_UID);
+                size = template.size();
+            }
+            NfcPlugin.writeNdef(tag, message, size);
+
+            long end = System.nanoTime();
+            int allocated = Debug.getThreadAllocCount();
+
+            if (i >= 0) {
+                overhead[i] = end - start - tag.sleptNanos;
+                total[i] = end - start;
+                allocations += allocated;
+            }
+        }
+
+        long sum = 0;
+        for (long nanos : total) {
+            sum += nanos;
+        }
+        Arrays.sort(overhead);
+        Arrays.sort(total);
+
+        JSONObject result = new JSONObject();
+        result.put("size", size);
+        result.put("writesPerSecond", round(iterations * 1e9 / sum));
+        result.put("p50", millis(percentile(total, 0.5)));
+        result.put("p99", millis(percentile(total, 0.99)));
+        result.put("overheadP50", millis(percentile(overhead, 0.5)));
+        result.put("overheadP99", millis(percentile(overhead, 0.99)));
+        result.put("allocationsPerWrite", round((double) allocations / iterations));
+        return result;
+    }
+
+    private class SimulatedTag implements NdefTarget {
+        long sleptNanos;
+
+        public void connect() {
+        }
+
+        public boolean isWritable() {
+            return true;
+        }
+
+        public int getMaxSize() {
+            return capacity;
+        }
+
+        public void write(NdefMessage message) {
+            int size = message.toByteArray().length;
+            long micros = latencyMillis * 1000 + (long) perByteMicros * size;
+            long start = System.nanoTime();
+            try {
+                Thread.sleep(micros / 1000, (int) (micros % 1000) * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            sleptNanos += System.nanoTime() - start;
+        }
+
+        public void close() {
+        }
+    }
+
+    private JSONArray compare(JSONObject cases, JSONObject baseline) throws JSONException {
+        JSONArray regressions = new JSONArray();
+        JSONArray names = cases.names();
+        for (int i = 0; i < names.length(); i++) {
+            String name = names.getString(i);
+            JSONObject current = cases.getJSONObject(name);
+            JSONObject previous = baseline.optJSONObject(name);
+            if (previous == null) {
+                continue;
+            }
+            if (current.getDouble("writesPerSecond") < previous.getDouble("writesPerSecond") * (1 - tolerance)) {
+                regressions.put(regression(name, "writesPerSecond", current, previous));
+            }
+            // baselines saved before overhead was measured don't have it
+            if (previous.has("overheadP99") && current.getDouble("overheadP99") > previous.getDouble("overheadP99") * (1 + tolerance)) {
+                regressions.put(regression(name, "overheadP99", current, previous));
+            }
+            if (current.getDouble("allocationsPerWrite") > previous.getDouble("allocationsPerWrite") * (1 + tolerance)) {
+                regressions.put(regression(name, "allocationsPerWrite", current, previous));
+            }
+        }
+        return regressions;
+    }
+
+    private static JSONObject regression(String name, String metric, JSONObject current, JSONObject previous) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("case", name);
+        json.put("metric", metric);
+        json.put("value", current.getDouble(metric));
+        json.put("baseline", previous.getDouble(metric));
+        return json;
+    }
+
+    private JSONObject options() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("iterations", iterations);
+        json.put("latency", latencyMillis);
+        json.put("perByte", perByteMicros);
+        json.put("capacity", capacity);
+        return json;
+    }
+
+    private boolean sameOptions(JSONObject options) {
+        return options.optInt("iterations") == iterations && options.optLong("latency") == latencyMillis &&
+                options.optInt("perByte") == perByteMicros && options.optInt("capacity") == capacity;
+    }
+
+    // One MIME record, text/pg like the README examples
+    private static String messageJSON(byte[] payload) throws JSONException {
+        JSONObject record = new JSONObject();
+        record.put("tnf", 2);
+        record.put("type", Util.byteArrayToJSON(MIME_TYPE));
+        record.put("id", new JSONArray());
+        record.put("payload", Util.byteArrayToJSON(payload));
+        return new JSONArray().put(record).toString();
+    }
+
+    private static long percentile(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 10) / 10.0;
+    }
+
+    private static JSONObject readBaseline(File file) throws IOException, JSONException {
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int count = in.read(bytes, read, bytes.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return new JSONObject(new String(bytes, 0, read, "UTF-8"));
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeBaseline(File file, JSONObject baseline) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(baseline.toString().getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
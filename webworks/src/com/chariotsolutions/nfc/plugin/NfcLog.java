@@ -0,0 +1,99 @@
+package com.chariotsolutions.nfc.plugin;
+
+import org.apache.cordova.json4j.JSONException;
+import org.apache.cordova.json4j.JSONObject;
+import org.apache.cordova.util.Logger;
+
+// Logging that costs nothing when it's off. Check on() before building the message:
+//
+//     if (NfcLog.on(NfcLog.EVENT, NfcLog.DEBUG)) {
+//         NfcLog.log(NfcLog.DEBUG, NfcLog.truncate(command));
+//     }
+//
+// Each category can be sampled so only every nth message is logged.
+final class NfcLog {
+
+    static final int DEBUG = 0;
+    static final int INFO = 1;
+    static final int ERROR = 2;
+
+    static final int GENERAL = 0;
+    static final int EXECUTE = 1;
+    static final int PAYLOAD = 2;
+    static final int EVENT = 3;
+
+    private static final String[] CATEGORIES = { "general", "execute", "payload", "event" };
+    private static final String[] LEVELS = { "debug", "info", "error" };
+
+    private static int level = INFO;
+    private static int maxPayload = 256;
+    private static final int[] sampleRates = { 1, 1, 1, 1 };
+    private static final int[] counters = new int[CATEGORIES.length];
+
+    private NfcLog() {
+    }
+
+    // messages without a category are GENERAL, they're sampled like the others
+    static boolean on(int level) {
+        return on(GENERAL, level);
+    }
+
+    // counters aren't synchronized, sampling only needs to be approximately every nth message
+    static boolean on(int category, int level) {
+        if (level < NfcLog.level) {
+            return false;
+        }
+        int rate = sampleRates[category];
+        return rate <= 1 || counters[category]++ % rate == 0;
+    }
+
+    static void log(int level, String message) {
+        if (level == DEBUG) {
+            Logger.debug(message);
+        } else if (level == INFO) {
+            Logger.log(message);
+        } else {
+            Logger.error(message);
+        }
+    }
+
+    static String truncate(String payload) {
+        if (payload == null || payload.length() <= maxPayload) {
+            return payload;
+        }
+        return payload.substring(0, maxPayload) + "... (" + payload.length() + " chars)";
+    }
+
+    // options: level ("debug", "info", "error"), maxPayload and sample, e.g. { event: 10 }
+    static void configure(JSONObject options) throws JSONException {
+        if (options.has("level")) {
+            level = parseLevel(options.getString("level"));
+        }
+        if (options.has("maxPayload")) {
+            maxPayload = Math.max(0, options.getInt("maxPayload"));
+        }
+        if (options.has("sample")) {
+            JSONObject sample = options.getJSONObject("sample");
+            for (int i = 0; i < CATEGORIES.length; i++) {
+                if (sample.has(CATEGORIES[i])) {
+                    sampleRates[i] = Math.max(1, sample.getInt(CATEGORIES[i]));
+                }
+            }
+        }
+    }
+
+    private static int parseLevel(String name) throws JSONException {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i].equals(name.toLowerCase())) {
+                return i;
+            }
+        }
+        // verbose and warn are accepted so the same options work on Android
+        if ("verbose".equals(name.toLowerCase())) {
+            return DEBUG;
+        } else if ("warn".equals(name.toLowerCase())) {
+            return ERROR;
+        }
+        throw new JSONException("Invalid log level " + name);
+    }
+}
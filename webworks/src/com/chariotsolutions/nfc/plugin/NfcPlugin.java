@@ -17,6 +17,7 @@ import org.apache.cordova.json4j.JSONArray;
 import org.apache.cordova.json4j.JSONException;
 import org.apache.cordova.util.Logger;
 
+import javax.microedition.io.Connection;
 import javax.microedition.io.Connector;
 import java.io.IOException;
 import java.util.Hashtable;
@@ -48,6 +49,7 @@ public class NfcPlugin extends Plugin {
     private static final String SHARE_TAG = "shareTag";
     private static final String UNSHARE_TAG = "unshareTag";
     private static final String INIT = "init";
+    private static final String SET_LOG_LEVEL = "setLogLevel";
     
     private static final String REMOVE_MIME_TYPE = "removeMimeType";
     private static final String REMOVE_NDEF = "removeNdef";
@@ -61,6 +63,8 @@ public class NfcPlugin extends Plugin {
 
     private TagWritingListener ndefListener;
     private DetectionListener tagListener;
+    // tag events only read the NDEF message when the listener asked for it
+    private volatile boolean tagListenerWantsMessage = true;
     private VirtualNDEFTag virtualTag;
 
     private int WAIT_FOR_WRITE_MILLIS = 3000;
@@ -77,7 +81,9 @@ public class NfcPlugin extends Plugin {
      * @return A PluginResult object with a status and message.
      */
     public PluginResult execute(String action, JSONArray args, String callbackId) {
-        Logger.debug(action + " " + args.toString());
+        if (NfcLog.on(NfcLog.EXECUTE, NfcLog.DEBUG)) {
+            NfcLog.log(NfcLog.DEBUG, action + " " + NfcLog.truncate(args.toString()));
+        }
         PluginResult result;
 
         try {
@@ -103,7 +109,7 @@ public class NfcPlugin extends Plugin {
             result = removeNdefListener();
 
         } else if (REGISTER_DEFAULT_TAG.equals(action)) {
-            result = registerTagListener();
+            result = registerTagListener(args);
 
         } else if (REMOVE_DEFAULT_TAG.equals(action)) {
             result = removeTagListener();
@@ -114,6 +120,10 @@ public class NfcPlugin extends Plugin {
         } else if (ERASE_TAG.equals(action)) {
             result = eraseTag();
 
+        } else if (SET_LOG_LEVEL.equals(action)) {
+            NfcLog.configure(args.getJSONObject(0));
+            result = new PluginResult(Status.OK);
+
         } else if (SHARE_TAG.equals(action)) {
             result = shareTag(args);
 
@@ -179,8 +189,10 @@ public class NfcPlugin extends Plugin {
         return new PluginResult(Status.OK);
     }
 
-    private PluginResult registerTagListener() throws NFCException, JSONException {
+    // args[0] is the optional list of fields the listener uses, the message is only read for "ndefMessage"
+    private PluginResult registerTagListener(JSONArray args) throws NFCException, JSONException {
         ReaderWriterManager nfc = ReaderWriterManager.getInstance();
+        tagListenerWantsMessage = wantsMessage(args);
 
         tagListener  = new DetectionListener() {
 
@@ -189,11 +201,8 @@ public class NfcPlugin extends Plugin {
                 Hashtable props = Util.getTagProperties(target);
 
                 NDEFMessage message = null;
-                try {
-                    NDEFTagConnection tagConnection = (NDEFTagConnection) Connector.open(target.getUri(Target.NDEF_TAG));
-                    message = tagConnection.read();  // might want to handle NFCException different
-                } catch (IOException e) {
-                    Logger.error("Failed reading tag " + e.toString());
+                if (tagListenerWantsMessage && target.isType(Target.NDEF_TAG)) {
+                    message = readMessage(target);
                 }
 
                 fireNdefEvent(TAG_DEFAULT, message, props);
@@ -204,6 +213,42 @@ public class NfcPlugin extends Plugin {
         return new PluginResult(Status.OK);
     }
 
+    private static boolean wantsMessage(JSONArray args) throws JSONException {
+        if (args.length() == 0 || args.isNull(0)) {
+            return true;
+        }
+        JSONArray fields = args.getJSONArray(0);
+        for (int i = 0; i < fields.length(); i++) {
+            if ("ndefMessage".equals(fields.getString(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static NDEFMessage readMessage(Target target) {
+        NDEFTagConnection tagConnection = null;
+        try {
+            tagConnection = (NDEFTagConnection) Connector.open(target.getUri(Target.NDEF_TAG));
+            return tagConnection.read();  // might want to handle NFCException different
+        } catch (IOException e) {
+            Logger.error("Failed reading tag " + e.toString());
+            return null;
+        } finally {
+            close(tagConnection);
+        }
+    }
+
+    private static void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                Logger.error("Failed to close tag connection " + e.toString());
+            }
+        }
+    }
+
     private PluginResult removeTagListener() throws NFCException, JSONException {
         ReaderWriterManager nfc = ReaderWriterManager.getInstance();
         nfc.removeDetectionListener(tagListener);
@@ -215,9 +260,7 @@ public class NfcPlugin extends Plugin {
         NDEFMessage message = Util.jsonToNdefMessage(args.getString(0));
 
         try {
-            if (ndefListener != null) {
-                ndefListener.write(message);
-            } else {
+            if (ndefListener == null || !ndefListener.write(message)) {
                 return new PluginResult(Status.IO_EXCEPTION, "Tag Write Failed (Lost Tag)");
             }
         } catch (TagLockedException e) {
@@ -239,9 +282,7 @@ public class NfcPlugin extends Plugin {
     private PluginResult eraseTag() throws NFCException {
 
         try {
-            if (ndefListener != null) {
-                ndefListener.erase();
-            } else {
+            if (ndefListener == null || !ndefListener.erase()) {
                 return new PluginResult(Status.IO_EXCEPTION, "Erase Failed (Lost Tag)");
             }
         } catch (TagLockedException e) {
@@ -282,7 +323,9 @@ public class NfcPlugin extends Plugin {
         Object[] args = { type, tag };
 
         String command = MessageFormat.format(javascriptTemplate, args);
-        Logger.debug(command);
+        if (NfcLog.on(NfcLog.EVENT, NfcLog.DEBUG)) {
+            NfcLog.log(NfcLog.DEBUG, NfcLog.truncate(command));
+        }
         this.invokeScript(command);
     }
 
@@ -294,21 +337,26 @@ public class NfcPlugin extends Plugin {
     // nfc.write before onTargetDetected completes and target is invalid.
     //
     // Javascript has no idea when reads fail with errors.  Need to look into registering error listeners.
+    //
+    // The connection opened for the read is used for the write or erase and closed when the window ends,
+    // writes after the window fail instead of using a connection to a target that is gone.
     class TagWritingListener implements DetectionListener {
 
-        NDEFTagConnection tagConnection;
-        Target target;
-        Thread t;
+        private NDEFTagConnection tagConnection;
+        private Thread t;
 
         public void onTargetDetected(Target target) {
-            this.target = target;
-
+            NDEFTagConnection connection = null;
             try {
-                tagConnection = (NDEFTagConnection) Connector.open(target.getUri(Target.NDEF_TAG));
-                NDEFMessage message = tagConnection.read();
+                connection = (NDEFTagConnection) Connector.open(target.getUri(Target.NDEF_TAG));
+                NDEFMessage message = connection.read();
+
+                synchronized (this) {
+                    tagConnection = connection;
+                    t = Thread.currentThread();
+                }
                 fireNdefEvent(NDEF, message, Util.getTagProperties(target));
 
-                t = Thread.currentThread();
                 try {
                     Thread.sleep(WAIT_FOR_WRITE_MILLIS);
                 } catch (InterruptedException e) {
@@ -318,22 +366,35 @@ public class NfcPlugin extends Plugin {
                 Logger.error("Failed to read NDEF tag" + e.toString());
             } catch (IOException e) {
                 Logger.error("Failed to connect to NDEF tag" + e.toString());
+            } finally {
+                // waits for a write in progress
+                synchronized (this) {
+                    tagConnection = null;
+                    t = null;
+                }
+                close(connection);
             }
 
         }
 
-        public void write(NDEFMessage message) throws IOException {
-
+        // Returns false if the write window is over
+        public synchronized boolean write(NDEFMessage message) throws IOException {
+            if (tagConnection == null) {
+                return false;
+            }
             tagConnection.write(message);
             t.interrupt();
-
+            return true;
         }
 
-        public void erase() throws NFCException {
-
+        // Returns false if the write window is over
+        public synchronized boolean erase() throws NFCException {
+            if (tagConnection == null) {
+                return false;
+            }
             tagConnection.erase();
             t.interrupt();
-
+            return true;
         }
 
     }
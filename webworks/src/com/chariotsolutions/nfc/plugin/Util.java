@@ -59,7 +59,9 @@ public class Util {
     }
 
     static NDEFRecord[] jsonToNdefRecords(String ndefMessageAsJSON) throws JSONException, NFCException {
-        Logger.log(ndefMessageAsJSON);
+        if (NfcLog.on(NfcLog.PAYLOAD, NfcLog.DEBUG)) {
+            NfcLog.log(NfcLog.DEBUG, NfcLog.truncate(ndefMessageAsJSON));
+        }
         JSONArray jsonRecords = new JSONArray(ndefMessageAsJSON);
 
         NDEFRecord[] records = new NDEFRecord[jsonRecords.length()];
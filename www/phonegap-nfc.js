@@ -4,24 +4,17 @@
 
 function handleNfcFromIntentFilter() {
 
-    // This was historically done in cordova.addConstructor but broke with PhoneGap-2.2.0.
-    // We need to handle NFC from an Intent that launched the application, but *after*
-    // the code in the application's deviceready has run.  After upgrading to 2.2.0,
-    // addConstructor was finishing *before* deviceReady was complete and the
-    // ndef listeners had not been registered.
-    // It seems like there should be a better solution.
-    setTimeout(
+    // The tag that launched the application is parsed natively at startup and held until
+    // a listener for its event type is registered, so init doesn't need to wait for the
+    // application's deviceready code to run.
+    cordova.exec(
         function () {
-            cordova.exec(
-                function () {
-                    console.log("Initialized the NfcPlugin");
-                },
-                function (reason) {
-                    window.alert("Failed to initialize the NfcPlugin " + reason);
-                },
-                "NfcPlugin", "init", []
-            );
-        }, 10
+            console.log("Initialized the NfcPlugin");
+        },
+        function (reason) {
+            window.alert("Failed to initialize the NfcPlugin " + reason);
+        },
+        "NfcPlugin", "init", []
     );
 }
 
@@ -113,28 +106,43 @@ var ndef = {
 
 var nfc = {
 
-    addTagDiscoveredListener: function (callback, win, fail) {
+    // fields (optional, Android) is an array of the tag properties the listener uses, e.g. ["id"]
+    addTagDiscoveredListener: function (callback, win, fail, fields) {
         document.addEventListener("tag", callback, false);
-        cordova.exec(win, fail, "NfcPlugin", "registerTag", []);
+        cordova.exec(win, fail, "NfcPlugin", "registerTag", [fields]);
     },
 
-    addMimeTypeListener: function (mimeType, callback, win, fail) {
+    addMimeTypeListener: function (mimeType, callback, win, fail, fields) {
         document.addEventListener("ndef-mime", callback, false);    
-        cordova.exec(win, fail, "NfcPlugin", "registerMimeType", [mimeType]);
+        cordova.exec(win, fail, "NfcPlugin", "registerMimeType", [mimeType, fields]);
     },
     
-    addNdefListener: function (callback, win, fail) {
+    addNdefListener: function (callback, win, fail, fields) {
         document.addEventListener("ndef", callback, false);                
-        cordova.exec(win, fail, "NfcPlugin", "registerNdef", []);
+        cordova.exec(win, fail, "NfcPlugin", "registerNdef", [fields]);
     },
 
-    addNdefFormatableListener: function (callback, win, fail) {
+    addNdefFormatableListener: function (callback, win, fail, fields) {
         document.addEventListener("ndef-formatable", callback, false);
-        cordova.exec(win, fail, "NfcPlugin", "registerNdefFormatable", []);
+        cordova.exec(win, fail, "NfcPlugin", "registerNdefFormatable", [fields]);
     },
     
-    write: function (ndefMessage, win, fail) {
-        cordova.exec(win, fail, "NfcPlugin", "writeTag", [ndefMessage]);
+    // handle (optional, Android) is the tag.handle of a recent event, defaults to the last scanned tag
+    write: function (ndefMessage, win, fail, handle) {
+        cordova.exec(win, fail, "NfcPlugin", "writeTag", [ndefMessage, handle]);
+    },
+
+    // fields: [{ type: "counter", record: 0, offset: 12, length: 6, format: "ascii", start: 1 }, ...]
+    registerTemplate: function (ndefMessage, fields, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "registerTemplate", [ndefMessage, fields]);
+    },
+
+    writeTemplate: function (templateId, win, fail, handle) {
+        cordova.exec(win, fail, "NfcPlugin", "writeTemplate", [templateId, handle]);
+    },
+
+    removeTemplate: function (templateId, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "removeTemplate", [templateId]);
     },
 
     share: function (ndefMessage, win, fail) {
@@ -145,8 +153,100 @@ var nfc = {
         cordova.exec(win, fail, "NfcPlugin", "unshareTag", []);
     },
 
-    erase: function (win, fail) {
-        cordova.exec(win, fail, "NfcPlugin", "eraseTag", []);
+    erase: function (win, fail, handle) {
+        cordova.exec(win, fail, "NfcPlugin", "eraseTag", [handle]);
+    },
+
+    makeReadOnly: function (win, fail, handle) {
+        cordova.exec(win, fail, "NfcPlugin", "makeReadOnly", [handle]);
+    },
+
+    read: function (win, fail, handle) {
+        cordova.exec(win, fail, "NfcPlugin", "readTag", [handle]);
+    },
+
+    // options: enabled, pagesPerRead and includeMemory, applies to read on NFC Forum Type 2 tags
+    setFastRead: function (options, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "setFastRead", [options]);
+    },
+
+    // options: iterations, warmup, latency, perByte, capacity, tolerance and saveBaseline
+    benchmarkWrite: function (options, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "benchmarkWrite", [options]);
+    },
+
+    // options: level ("verbose", "debug", "info", "warn", "error"), maxPayload and sample, e.g. { event: 10 }
+    setLogLevel: function (options, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "setLogLevel", [options]);
+    },
+
+    // policy: maxAttempts, backoff and deadline in milliseconds, applies to write and erase
+    setRetryPolicy: function (policy, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "setRetryPolicy", [policy]);
+    },
+
+    // uids is an array of byte arrays, mode is "allow", "deny" or "flag"
+    setUidFilter: function (mode, uids, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "setUidFilter", [mode, uids]);
+    },
+
+    // path is a file on the device containing UIDs packed as a length byte followed by the UID bytes
+    loadUidFilter: function (mode, path, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "loadUidFilter", [mode, path]);
+    },
+
+    clearUidFilter: function (win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "clearUidFilter", []);
+    },
+
+    // only fire eventType ("tag", "ndef", "ndef-mime" or "ndef-formatable") for messages matching one of the rules
+    // rule properties: tnf, type, uriPrefix, payload, payloadOffset, minRecords, maxRecords
+    setNdefFilter: function (eventType, rules, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "setNdefFilter", [eventType, rules]);
+    },
+
+    clearNdefFilter: function (eventType, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "clearNdefFilter", [eventType]);
+    },
+
+    // options: capacity, window, ackTimeout and policy ("drop-oldest", "drop-newest" or "coalesce-by-uid")
+    configureEventQueue: function (options, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "configureEventQueue", [options]);
+    },
+
+    getEventQueueStats: function (win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "getEventQueueStats", []);
+    },
+
+    addPressureListener: function (callback) {
+        document.addEventListener("nfc-pressure", callback, false);
+    },
+
+    // options: segmentSize (bytes) and maxSegments
+    enableJournal: function (options, win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "enableJournal", [options || {}]);
+    },
+
+    disableJournal: function (win, fail) {
+        cordova.exec(win, fail, "NfcPlugin", "disableJournal", []);
+    },
+
+    // journaled events newer than sinceSeq are fired again with replayed set to true
+    replayJournal: function (sinceSeq, win, fail) {
+        cordova.exec(
+            function (result) {
+                if (result.done) {
+                    if (win) { win(result); }
+                } else {
+                    var e = document.createEvent('Events');
+                    e.initEvent(result.type);
+                    e.tag = result.tag;
+                    e.replayed = true;
+                    document.dispatchEvent(e);
+                }
+            },
+            fail, "NfcPlugin", "replayJournal", [sinceSeq || 0]
+        );
     },
 
     removeTagDiscoveredListener: function (callback, win, fail) {